@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link CharSequence} view of a range of UTF-8 bytes in a {@link ByteBuffer}, one char per
+ * byte. This lets {@link GameEventParser} scan raw file bytes without decoding them: every byte
+ * of a multi-byte UTF-8 sequence is at least 0x80, so it can never be mistaken for a comma,
+ * whitespace or a digit. Only {@link #toString()} actually decodes.
+ *
+ * <p>The view is mutable so that a reader can reuse one instance for every line.
+ */
+final class ByteSlice implements CharSequence {
+
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+
+  ByteSlice() {}
+
+  private ByteSlice(ByteBuffer buffer, int offset, int length) {
+    reset(buffer, offset, length);
+  }
+
+  /** Points this view at {@code length} bytes of {@code buffer} starting at {@code offset}. */
+  ByteSlice reset(ByteBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    return this;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (buffer.get(offset + index) & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new ByteSlice(buffer, offset + start, end - start);
+  }
+
+  /** Decodes the bytes of {@code [start, end)} of this view as UTF-8. */
+  String decode(int start, int end) {
+    if (buffer.hasArray()) {
+      return new String(
+          buffer.array(), buffer.arrayOffset() + offset + start, end - start,
+          StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[end - start];
+    ByteBuffer source = buffer.duplicate();
+    source.position(offset + start);
+    source.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return decode(0, length);
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+/** How the Injector encodes the game events it sends to Kafka, and how LeaderBoard reads them. */
+public enum EventFormat {
+  /** The log line, {@code user,team,score,timestamp_in_ms,readable_time}, as UTF-8. */
+  CSV,
+  /**
+   * The event encoded with {@link GameActionInfoCoder}. An empty record stands for a corrupt
+   * event, and fails to decode.
+   */
+  BINARY
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import demo.HourlyTeamScore.GameActionInfo;
+
+/**
+ * Scans game event lines of the form {@code user,team,score,timestamp_in_ms,readable_time} in
+ * place. Field boundaries are located by index and the score and timestamp are parsed directly
+ * from the characters, so a successful parse allocates nothing; the user and team strings are
+ * only materialized when asked for. Wrapping raw file bytes in a {@link ByteSlice} parses them
+ * without decoding.
+ *
+ * <p>Accepts exactly what {@code split(",")}, {@code trim()}, {@link Integer#parseInt} and
+ * {@link Long#parseLong} accept for ASCII input: fields are trimmed of leading and trailing
+ * whitespace, numbers may carry a sign, and anything after the fourth field is ignored.
+ *
+ * <p>A parser holds the state of the last parsed line and is not thread-safe; use one per
+ * {@code DoFn} instance.
+ */
+final class GameEventParser {
+
+  private CharSequence line;
+  private int userStart;
+  private int userEnd;
+  private int teamStart;
+  private int teamEnd;
+  private int score;
+  private long timestamp;
+  private String error;
+
+  /**
+   * Parses {@code line}. Returns true on success, after which the field accessors describe the
+   * line; returns false otherwise, with the reason available from {@link #error()}.
+   */
+  boolean parse(CharSequence line) {
+    this.line = line;
+    int length = line.length();
+
+    int end = indexOfComma(line, 0, length);
+    if (end < 0) {
+      return fail("missing team");
+    }
+    userStart = trimStart(line, 0, end);
+    userEnd = trimEnd(line, userStart, end);
+
+    int start = end + 1;
+    end = indexOfComma(line, start, length);
+    if (end < 0) {
+      return fail("missing score");
+    }
+    teamStart = trimStart(line, start, end);
+    teamEnd = trimEnd(line, teamStart, end);
+
+    start = end + 1;
+    end = indexOfComma(line, start, length);
+    if (end < 0) {
+      return fail("missing timestamp");
+    }
+    long value = parseLong(line, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    if (value == INVALID) {
+      return fail("invalid score");
+    }
+    score = (int) value;
+
+    start = end + 1;
+    end = indexOfComma(line, start, length);
+    if (end < 0) {
+      end = length;
+    }
+    value = parseLong(line, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+    if (value == INVALID) {
+      return fail("invalid timestamp");
+    }
+    timestamp = value;
+
+    error = null;
+    return true;
+  }
+
+  /** Returns the user of the last parsed line. */
+  String user() {
+    return substring(line, userStart, userEnd);
+  }
+
+  /** Returns the team of the last parsed line. */
+  String team() {
+    return substring(line, teamStart, teamEnd);
+  }
+
+  /** Returns the score of the last parsed line. */
+  int score() {
+    return score;
+  }
+
+  /** Returns the timestamp, in milliseconds, of the last parsed line. */
+  long timestamp() {
+    return timestamp;
+  }
+
+  /** Returns why the last parse failed, or null if it succeeded. */
+  String error() {
+    return error;
+  }
+
+  /** Returns the last parsed line as a GameActionInfo. */
+  GameActionInfo toGameActionInfo() {
+    return new GameActionInfo(user(), team(), score, timestamp);
+  }
+
+  private boolean fail(String reason) {
+    error = reason;
+    return false;
+  }
+
+  // Marks a number that failed to parse. Long.MIN_VALUE is outside the range of a score and is
+  // never a sensible timestamp, so it is treated as malformed too.
+  private static final long INVALID = Long.MIN_VALUE;
+
+  private static String substring(CharSequence s, int start, int end) {
+    if (s instanceof ByteSlice) {
+      return ((ByteSlice) s).decode(start, end);
+    }
+    return s.subSequence(start, end).toString();
+  }
+
+  private static int indexOfComma(CharSequence s, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == ',') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Matches {@link String#trim()}, which strips every character up to and including ' '. */
+  private static int trimStart(CharSequence s, int from, int to) {
+    while (from < to && s.charAt(from) <= ' ') {
+      from++;
+    }
+    return from;
+  }
+
+  private static int trimEnd(CharSequence s, int from, int to) {
+    while (to > from && s.charAt(to - 1) <= ' ') {
+      to--;
+    }
+    return to;
+  }
+
+  /**
+   * Parses the trimmed decimal number in {@code s[from, to)}, returning {@link #INVALID} if it is
+   * malformed or outside {@code [min, max]}.
+   */
+  private static long parseLong(CharSequence s, int from, int to, long min, long max) {
+    from = trimStart(s, from, to);
+    to = trimEnd(s, from, to);
+    if (from == to) {
+      return INVALID;
+    }
+    boolean negative = false;
+    char first = s.charAt(from);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      if (++from == to) {
+        return INVALID;
+      }
+    }
+    // Accumulate negatively so that the most negative value does not overflow.
+    long limit = negative ? min : -max;
+    long result = 0;
+    for (int i = from; i < to; i++) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || result < (limit + digit) / 10) {
+        return INVALID;
+      }
+      result = result * 10 - digit;
+    }
+    if (result < limit) {
+      return INVALID;
+    }
+    return negative ? result : -result;
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.io.FileBasedSource;
+import org.apache.beam.sdk.io.fs.MatchResult.Metadata;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.options.ValueProvider.StaticValueProvider;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import demo.HourlyTeamScore.GameActionInfo;
+
+/**
+ * A splittable source that reads game log files of the form
+ * {@code user,team,score,timestamp_in_ms,readable_time} straight into timestamped
+ * GameActionInfos. Lines are found by scanning raw bytes for newlines and parsed in place by a
+ * {@link GameEventParser}, so nothing but the user and team names is ever decoded to a String.
+ *
+ * <p>Files are split into byte ranges. A range owns every line that starts inside it, so the line
+ * straddling its start belongs to the previous range. Lines that fail to parse are logged, counted
+ * and dropped.
+ *
+ * <p>A memory-mapped source maps local files in large read-only segments and parses the lines in
+ * place, with no copy into a read buffer. Files that are not on the local file system are read
+ * through the regular channel.
+ */
+public class GameEventSource extends FileBasedSource<GameActionInfo> {
+
+  private static final long serialVersionUID = 1L;
+
+  // Lines are around 70 bytes, so bundles much smaller than this are all overhead.
+  private static final long MIN_BUNDLE_SIZE = 1 << 20;
+
+  private final boolean memoryMapped;
+
+  public GameEventSource(String fileOrPatternSpec) {
+    this(fileOrPatternSpec, false);
+  }
+
+  public GameEventSource(String fileOrPatternSpec, boolean memoryMapped) {
+    super(StaticValueProvider.of(fileOrPatternSpec), MIN_BUNDLE_SIZE);
+    this.memoryMapped = memoryMapped;
+  }
+
+  private GameEventSource(Metadata metadata, long start, long end, boolean memoryMapped) {
+    super(metadata, MIN_BUNDLE_SIZE, start, end);
+    this.memoryMapped = memoryMapped;
+  }
+
+  @Override
+  protected FileBasedSource<GameActionInfo> createForSubrangeOfFile(
+      Metadata metadata, long start, long end) {
+    return new GameEventSource(metadata, start, end, memoryMapped);
+  }
+
+  @Override
+  protected FileBasedReader<GameActionInfo> createSingleFileReader(PipelineOptions options) {
+    return new GameEventReader(this);
+  }
+
+  @Override
+  public Coder<GameActionInfo> getDefaultOutputCoder() {
+    return GameActionInfoCoder.of();
+  }
+
+  /** Reads the lines of one byte range of a file, parsing them as it goes. */
+  static class GameEventReader extends FileBasedReader<GameActionInfo> {
+
+    // Log and count parse errors.
+    private static final Logger LOG = LoggerFactory.getLogger(GameEventReader.class);
+    private static final Counter numParseErrorsCounter =
+        Metrics.counter(GameEventReader.class, "ParseErrors");
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    private static final int MAPPED_SEGMENT_SIZE = 1 << 26;
+
+    private ReadableByteChannel channel;
+    // Bytes that have not been consumed yet are in [start, end) of window, and windowOffset is the
+    // file offset of window[0]. The window is either a read buffer refilled from the channel or
+    // a mapped segment of the file.
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private int start;
+    private int end;
+    private long windowOffset;
+    private boolean eof;
+
+    // Set when reading through a read buffer.
+    private byte[] buffer;
+    // Set when reading mapped segments.
+    private FileChannel file;
+    private long fileSize;
+    private int segmentSize = MAPPED_SEGMENT_SIZE;
+
+    private final ByteSlice line = new ByteSlice();
+    private final GameEventParser parser = new GameEventParser();
+
+    private long currentOffset;
+    private GameActionInfo current;
+    private long currentTimestamp;
+    // Unparseable lines are also added here, if set.
+    private List<String> parseErrors;
+
+    GameEventReader(GameEventSource source) {
+      super(source);
+    }
+
+    /** Also adds the lines that fail to parse to {@code parseErrors}. */
+    void collectParseErrors(List<String> parseErrors) {
+      this.parseErrors = parseErrors;
+    }
+
+    @Override
+    protected void startReading(ReadableByteChannel channel) throws IOException {
+      this.channel = channel;
+      GameEventSource source = (GameEventSource) getCurrentSource();
+      if (source.memoryMapped) {
+        if (channel instanceof FileChannel) {
+          file = (FileChannel) channel;
+          fileSize = file.size();
+        } else {
+          LOG.warn("Cannot memory-map {}, reading it through a buffer instead.",
+              source.getSingleFileMetadata().resourceId());
+        }
+      }
+      if (file == null) {
+        buffer = new byte[READ_BUFFER_SIZE];
+        window = ByteBuffer.wrap(buffer);
+      }
+
+      long startOffset = source.getStartOffset();
+      windowOffset = startOffset;
+      if (startOffset > 0) {
+        checkState(channel instanceof SeekableByteChannel,
+            "Cannot start reading at offset %s of a channel that is not seekable", startOffset);
+        // Back up one byte and skip through the next newline. If the previous range ended right
+        // at a line boundary that newline is the byte before our start, and we keep the line
+        // that starts there; otherwise we skip the partial line, which the previous range reads.
+        ((SeekableByteChannel) channel).position(startOffset - 1);
+        windowOffset = startOffset - 1;
+        int lineEnd = findLineEnd();
+        start = lineEnd < 0 ? end : Math.min(lineEnd + 1, end);
+      }
+    }
+
+    @Override
+    protected boolean readNextRecord() throws IOException {
+      while (true) {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+          return false;
+        }
+        int lineStart = start;
+        long lineOffset = windowOffset + lineStart;
+        start = Math.min(lineEnd + 1, end);
+
+        if (parser.parse(line.reset(window, lineStart, lineEnd - lineStart))) {
+          current = parser.toGameActionInfo();
+          currentTimestamp = parser.timestamp();
+          currentOffset = lineOffset;
+          return true;
+        }
+        if (lineOffset >= getCurrentSource().getEndOffset()) {
+          // The line belongs to the next range, which will count it.
+          return false;
+        }
+        numParseErrorsCounter.inc();
+        LOG.info("Parse error on " + line + ", " + parser.error());
+        if (parseErrors != null) {
+          parseErrors.add(line.toString());
+        }
+      }
+    }
+
+    /**
+     * Returns the index in the window of the newline ending the line at {@code start}, reading
+     * or mapping more of the file as needed. The final line of a file need not end with a
+     * newline, in which case this returns {@code end}. Returns -1 once the input is exhausted.
+     */
+    private int findLineEnd() throws IOException {
+      int scan = start;
+      while (true) {
+        for (; scan < end; scan++) {
+          if (window.get(scan) == '\n') {
+            return scan;
+          }
+        }
+        if (eof) {
+          return start < end ? end : -1;
+        }
+        // Both refills may move the unconsumed bytes to the front of the window.
+        scan -= file != null ? mapNextSegment() : fill();
+      }
+    }
+
+    /** Reads more of the channel into the buffer and returns how far its contents moved. */
+    private int fill() throws IOException {
+      int shift = 0;
+      if (end == buffer.length) {
+        if (start > 0) {
+          // Move the partial line to the front of the buffer to make room.
+          System.arraycopy(buffer, start, buffer, 0, end - start);
+          shift = start;
+          windowOffset += start;
+          end -= start;
+          start = 0;
+        } else {
+          // The line is longer than the whole buffer.
+          byte[] larger = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, larger, 0, end);
+          buffer = larger;
+          window = ByteBuffer.wrap(buffer);
+        }
+      }
+      window.position(end);
+      int read = channel.read(window);
+      if (read < 0) {
+        eof = true;
+      } else {
+        end += read;
+      }
+      return shift;
+    }
+
+    /**
+     * Maps the segment of the file starting at the partial line at {@code start} and returns how
+     * far the window contents moved.
+     */
+    private int mapNextSegment() throws IOException {
+      if (start == 0 && end > 0) {
+        // The line is longer than the whole segment.
+        segmentSize = (int) Math.min((long) segmentSize * 2, Integer.MAX_VALUE);
+      }
+      long position = windowOffset + start;
+      long size = Math.min(segmentSize, fileSize - position);
+      window = file.map(MapMode.READ_ONLY, position, size);
+      int shift = start;
+      windowOffset = position;
+      start = 0;
+      end = (int) size;
+      eof = position + size >= fileSize;
+      return shift;
+    }
+
+    @Override
+    protected long getCurrentOffset() throws NoSuchElementException {
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      return currentOffset;
+    }
+
+    @Override
+    public GameActionInfo getCurrent() throws NoSuchElementException {
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      return current;
+    }
+
+    @Override
+    public Instant getCurrentTimestamp() throws NoSuchElementException {
+      if (current == null) {
+        throw new NoSuchElementException();
+      }
+      return new Instant(currentTimestamp);
+    }
+  }
+}
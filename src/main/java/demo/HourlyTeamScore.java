@@ -15,13 +15,22 @@
  */
 package demo;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.avro.reflect.Nullable;
 import org.apache.beam.sdk.Pipeline;
-import org.apache.beam.sdk.coders.AvroCoder;
 import org.apache.beam.sdk.coders.DefaultCoder;
 import org.apache.beam.sdk.io.FileBasedSink.FilenamePolicy;
+import org.apache.beam.sdk.io.Read;
 import org.apache.beam.sdk.io.TextIO;
 import org.apache.beam.sdk.io.fs.ResolveOptions.StandardResolveOptions;
 import org.apache.beam.sdk.io.fs.ResourceId;
@@ -32,21 +41,29 @@ import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.options.Validation;
+import org.apache.beam.sdk.transforms.Combine;
 import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.Flatten;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.transforms.Sum;
 import org.apache.beam.sdk.transforms.ToString;
-import org.apache.beam.sdk.transforms.WithTimestamps;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.transforms.windowing.FixedWindows;
 import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
 import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionList;
+import org.apache.beam.sdk.values.PCollectionTuple;
 import org.apache.beam.sdk.values.PDone;
+import org.apache.beam.sdk.values.TupleTag;
+import org.apache.beam.sdk.values.TupleTagList;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
+import org.joda.time.Period;
+import org.joda.time.PeriodType;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
@@ -58,6 +75,16 @@ public class HourlyTeamScore {
 
   static final Duration ONE_HOUR = Duration.standardMinutes(60);
 
+  /** How the input files are read. */
+  public enum InputMode {
+    /** Decode lines with TextIO and parse them in a ParDo, writing unparseable lines aside. */
+    TEXT,
+    /** Parse events straight from the raw file bytes with a {@link GameEventSource}. */
+    BYTES,
+    /** Like BYTES, but memory-map local files in large segments instead of streaming them. */
+    MAPPED
+  }
+
   public interface Options extends PipelineOptions {
 
     @Description("Path to the data file(s) containing game data.")
@@ -71,10 +98,43 @@ public class HourlyTeamScore {
     @Validation.Required
     String getOutputPrefix();
     void setOutputPrefix(String value);
+
+    @Description("How to read the input: TEXT, BYTES or MAPPED")
+    @Default.Enum("TEXT")
+    InputMode getInputMode();
+    void setInputMode(InputMode value);
+
+    @Description("Sum team scores within each bundle before the shuffle")
+    @Default.Boolean(false)
+    boolean getPreAggregateInBundle();
+    void setPreAggregateInBundle(boolean value);
+
+    @Description("Teams whose sums are fanned out over --hotKeyFanout keys; all teams if unset")
+    List<String> getHotTeams();
+    void setHotTeams(List<String> value);
+
+    @Description("Intermediate keys to spread each hot team's sum over; 0 or 1 disables fanout")
+    @Default.Integer(0)
+    int getHotKeyFanout();
+    void setHotKeyFanout(int value);
+
+    @Description("Window sizes to roll team scores up to instead of hourly, e.g. PT5M,PT1H,P1D")
+    List<String> getRollups();
+    void setRollups(List<String> value);
+
+    @Description("Compute hourly scores on this machine with a fork-join pool instead of a runner")
+    @Default.Boolean(false)
+    boolean getLocalFastPath();
+    void setLocalFastPath(boolean value);
+
+    @Description("Threads for --localFastPath; 0 uses one per available processor")
+    @Default.Integer(0)
+    int getLocalParallelism();
+    void setLocalParallelism(int value);
   }
 
   /** Class to hold info about a game event. */
-  @DefaultCoder(AvroCoder.class)
+  @DefaultCoder(GameActionInfoCoder.class)
   static class GameActionInfo implements Serializable {
 
     @Nullable String user;
@@ -123,44 +183,210 @@ public class HourlyTeamScore {
     private static final Logger LOG = LoggerFactory.getLogger(ParseEventFn.class);
     private static final Counter numParseErrorsCounter = Metrics.counter(ParseEventFn.class, "ParseErrors");
 
+    private transient GameEventParser parser;
+
+    @Setup
+    public void setup() {
+      parser = new GameEventParser();
+    }
+
     @ProcessElement
     public void processElement(ProcessContext c) {
-      String[] components = c.element().split(",");
-      try {
-        String user = components[0].trim();
-        String team = components[1].trim();
-        Integer score = Integer.parseInt(components[2].trim());
-        Long timestamp = Long.parseLong(components[3].trim());
-        GameActionInfo gInfo = new GameActionInfo(user, team, score, timestamp);
-        c.output(gInfo);
-      } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      if (parser.parse(c.element())) {
+        c.output(parser.toGameActionInfo());
+      } else {
         numParseErrorsCounter.inc();
-        LOG.info("Parse error on " + c.element() + ", " + e.getMessage());
+        LOG.info("Parse error on " + c.element() + ", " + parser.error());
       }
     }
   }
 
-  private static class SetTimestampFn
-  implements SerializableFunction<String, Instant> {
+  /** Main output of {@link ParseGameEvents}: successfully parsed, timestamped events. */
+  static final TupleTag<GameActionInfo> PARSED_EVENTS = new TupleTag<GameActionInfo>() {};
+  /** Side output of {@link ParseGameEvents}: raw lines that could not be parsed. */
+  static final TupleTag<String> PARSE_ERRORS = new TupleTag<String>() {};
+  /** Appended to --outputPrefix for the files of lines that could not be parsed. */
+  static final String PARSE_ERRORS_SUFFIX = "-parse-errors";
+
+  /**
+   * DoFn that parses each raw log line exactly once and emits the resulting GameActionInfo with
+   * its event time as the element timestamp. Unparseable lines go to {@link #PARSE_ERRORS}
+   * rather than being stamped with an arbitrary time.
+   */
+  static class ParseAndTimestampEventFn extends DoFn<String, GameActionInfo> {
+
+    // Log and count parse errors.
+    private static final Logger LOG = LoggerFactory.getLogger(ParseAndTimestampEventFn.class);
+    private static final Counter numParseErrorsCounter =
+        Metrics.counter(ParseAndTimestampEventFn.class, "ParseErrors");
+
+    private transient GameEventParser parser;
+
+    @Setup
+    public void setup() {
+      parser = new GameEventParser();
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      if (parser.parse(c.element())) {
+        c.outputWithTimestamp(parser.toGameActionInfo(), new Instant(parser.timestamp()));
+      } else {
+        numParseErrorsCounter.inc();
+        LOG.info("Parse error on " + c.element() + ", " + parser.error());
+        c.output(PARSE_ERRORS, c.element());
+      }
+    }
+  }
+
+  /**
+   * Parses raw log lines into timestamped GameActionInfos in a single pass. The result holds the
+   * parsed events under {@link #PARSED_EVENTS} and the unparseable lines under
+   * {@link #PARSE_ERRORS}.
+   */
+  public static class ParseGameEvents extends PTransform<PCollection<String>, PCollectionTuple> {
+
     @Override
-    public Instant apply(String input) {
-      String[] components = input.split(",");
-      try {
-        return new Instant(Long.parseLong(components[3].trim()));
-      } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
-        return Instant.now();
+    public PCollectionTuple expand(PCollection<String> lines) {
+      return lines.apply(ParDo.of(new ParseAndTimestampEventFn())
+          .withOutputTags(PARSED_EVENTS, TupleTagList.of(PARSE_ERRORS)));
+    }
+  }
+
+  /** Main output of {@link KeyScoreByTeamFn}: scores keyed by {@link TeamDictionary} id. */
+  static final TupleTag<KV<Integer, Integer>> KNOWN_TEAM_SCORES =
+      new TupleTag<KV<Integer, Integer>>() {};
+  /** Side output of {@link KeyScoreByTeamFn}: scores of teams missing from the dictionary. */
+  static final TupleTag<KV<String, Integer>> UNKNOWN_TEAM_SCORES =
+      new TupleTag<KV<String, Integer>>() {};
+
+  /**
+   * Key by the team. Known teams are keyed by their small {@link TeamDictionary} id, so that is
+   * what gets shuffled; any other team keeps its name and goes to {@link #UNKNOWN_TEAM_SCORES}.
+   *
+   * <p>When pre-aggregating, the scores of known teams are summed per window in a primitive map
+   * for the whole bundle and emitted in {@link FinishBundle}, so a bundle produces one element per
+   * team and window rather than one per event.
+   */
+  static class KeyScoreByTeamFn extends DoFn<GameActionInfo, KV<Integer, Integer>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // Bounds the memory used for pre-aggregation. A DoFn can only output into the windows of its
+    // input, so past this many windows in a bundle the window of the current element is flushed
+    // after every FLUSH_EVERY_EVENTS of its events, and keeps being summed in between.
+    private static final int MAX_BUFFERED_WINDOWS = 1000;
+    private static final int FLUSH_EVERY_EVENTS = 10000;
+
+    private final boolean preAggregate;
+
+    private transient Map<BoundedWindow, IntIntHashMap> sumsPerWindow;
+    // Events mostly arrive in window order, so remember the last window's sums.
+    private transient BoundedWindow lastWindow;
+    private transient IntIntHashMap lastSums;
+    // Events summed into the last window's sums since it became the last window or was flushed.
+    private transient int lastWindowEvents;
+
+    KeyScoreByTeamFn() {
+      this(false);
+    }
+
+    KeyScoreByTeamFn(boolean preAggregate) {
+      this.preAggregate = preAggregate;
+    }
+
+    @Setup
+    public void setup() {
+      sumsPerWindow = new HashMap<>();
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c, BoundedWindow window) {
+      String team = c.element().getTeam();
+      int teamId = TeamDictionary.idOf(team);
+      if (teamId == TeamDictionary.UNKNOWN) {
+        c.output(UNKNOWN_TEAM_SCORES, KV.of(team, c.element().getScore()));
+      } else if (!preAggregate) {
+        c.output(KV.of(teamId, c.element().getScore()));
+      } else {
+        sumsFor(window).add(teamId, c.element().getScore());
+        if (sumsPerWindow.size() > MAX_BUFFERED_WINDOWS
+            && ++lastWindowEvents >= FLUSH_EVERY_EVENTS) {
+          IntIntHashMap sums = sumsPerWindow.remove(window);
+          lastWindow = null;
+          for (int slot = 0; slot < sums.capacity(); slot++) {
+            if (sums.isOccupied(slot)) {
+              c.outputWithTimestamp(
+                  KV.of(sums.keyAt(slot), sums.valueAt(slot)), window.maxTimestamp());
+            }
+          }
+        }
       }
     }
+
+    @FinishBundle
+    public void finishBundle(FinishBundleContext c) {
+      for (Map.Entry<BoundedWindow, IntIntHashMap> entry : sumsPerWindow.entrySet()) {
+        BoundedWindow window = entry.getKey();
+        IntIntHashMap sums = entry.getValue();
+        for (int slot = 0; slot < sums.capacity(); slot++) {
+          if (sums.isOccupied(slot)) {
+            c.output(KV.of(sums.keyAt(slot), sums.valueAt(slot)), window.maxTimestamp(), window);
+          }
+        }
+      }
+      sumsPerWindow.clear();
+      lastWindow = null;
+      lastSums = null;
+    }
+
+    private IntIntHashMap sumsFor(BoundedWindow window) {
+      if (window.equals(lastWindow)) {
+        return lastSums;
+      }
+      IntIntHashMap sums = sumsPerWindow.get(window);
+      if (sums == null) {
+        sums = new IntIntHashMap();
+        sumsPerWindow.put(window, sums);
+      }
+      lastWindow = window;
+      lastSums = sums;
+      lastWindowEvents = 0;
+      return sums;
+    }
   }
 
-  /** Key by the team. */
-  static class KeyScoreByTeamFn extends DoFn<GameActionInfo, KV<String, Integer>> {
+  /** Replaces a {@link TeamDictionary} id key with the team name. */
+  static class DecodeTeamIdFn extends DoFn<KV<Integer, Integer>, KV<String, Integer>> {
 
     private static final long serialVersionUID = 1L;
 
     @ProcessElement
     public void processElement(ProcessContext c) {
-      c.output(KV.of(c.element().getTeam(), c.element().getScore()));
+      c.output(KV.of(TeamDictionary.nameOf(c.element().getKey()), c.element().getValue()));
+    }
+  }
+
+  /**
+   * Tells {@link Combine.PerKey#withHotKeyFanout} how many intermediate keys to spread each key
+   * over: the fanout for hot keys, and 1, which means no fanout, for the rest. A null set of hot
+   * keys makes every key hot.
+   */
+  static class HotKeyFanoutFn<K> implements SerializableFunction<K, Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<K> hotKeys;
+    private final int fanout;
+
+    HotKeyFanoutFn(Set<K> hotKeys, int fanout) {
+      this.hotKeys = hotKeys;
+      this.fanout = fanout;
+    }
+
+    @Override
+    public Integer apply(K key) {
+      return hotKeys == null || hotKeys.contains(key) ? fanout : 1;
     }
   }
 
@@ -173,15 +399,24 @@ public class HourlyTeamScore {
   public static class PerWindowFiles extends FilenamePolicy {
 
     private final String prefix;
+    private final boolean includeDate;
     private static final DateTimeFormatter FORMATTER = ISODateTimeFormat.hourMinute();
+    private static final DateTimeFormatter DATE_FORMATTER = ISODateTimeFormat.dateHourMinute();
 
     public PerWindowFiles(String prefix) {
+      this(prefix, false);
+    }
+
+    /** Names files after the date as well as the time of their window if {@code includeDate}. */
+    public PerWindowFiles(String prefix, boolean includeDate) {
       this.prefix = prefix;
+      this.includeDate = includeDate;
     }
 
     public String filenamePrefixForWindow(IntervalWindow window) {
+      DateTimeFormatter formatter = includeDate ? DATE_FORMATTER : FORMATTER;
       return String.format("%s-%s-%s",
-          prefix, FORMATTER.print(window.start()), FORMATTER.print(window.end()));
+          prefix, formatter.print(window.start()), formatter.print(window.end()));
     }
 
     @Override
@@ -203,14 +438,234 @@ public class HourlyTeamScore {
     }
   }
 
-  /** Takes a collection of GameActionInfo events and writes the sums per team to files. */
+  /**
+   * Takes a collection of windowed GameActionInfo events and sums their scores per team and
+   * window. Teams are summed under their {@link TeamDictionary} ids, so the result holds the sums
+   * of known teams under {@link #KNOWN_TEAM_SCORES} and the sums of any other teams, by name,
+   * under {@link #UNKNOWN_TEAM_SCORES}.
+   */
+  static class SumScoresPerTeam
+  extends PTransform<PCollection<GameActionInfo>, PCollectionTuple> {
+
+    boolean preAggregate;
+    List<String> hotTeams = Collections.emptyList();
+    int hotKeyFanout;
+
+    /**
+     * Sums the values per key, fanning out the given hot keys. A null set means every key is
+     * hot.
+     */
+    private <K> PTransform<PCollection<KV<K, Integer>>, PCollection<KV<K, Integer>>> sumPerKey(
+        Set<K> hotKeys) {
+      Combine.PerKey<K, Integer, Integer> sum = Sum.integersPerKey();
+      if (hotKeyFanout <= 1 || (hotKeys != null && hotKeys.isEmpty())) {
+        return sum;
+      }
+      return sum.withHotKeyFanout(new HotKeyFanoutFn<K>(hotKeys, hotKeyFanout));
+    }
+
+    @Override
+    public PCollectionTuple expand(PCollection<GameActionInfo> events) {
+
+      PCollectionTuple scores = events
+          .apply(ParDo.of(new KeyScoreByTeamFn(preAggregate))
+              .withOutputTags(KNOWN_TEAM_SCORES, TupleTagList.of(UNKNOWN_TEAM_SCORES)));
+
+      Set<Integer> hotTeamIds = null;
+      Set<String> hotTeamNames = null;
+      if (!hotTeams.isEmpty()) {
+        hotTeamIds = new HashSet<>();
+        hotTeamNames = new HashSet<>();
+        for (String team : hotTeams) {
+          int teamId = TeamDictionary.idOf(team);
+          if (teamId == TeamDictionary.UNKNOWN) {
+            hotTeamNames.add(team);
+          } else {
+            hotTeamIds.add(teamId);
+          }
+        }
+      }
+
+      return PCollectionTuple
+          .of(KNOWN_TEAM_SCORES, scores.get(KNOWN_TEAM_SCORES)
+              .apply("SumKnownTeams", this.<Integer>sumPerKey(hotTeamIds)))
+          .and(UNKNOWN_TEAM_SCORES, scores.get(UNKNOWN_TEAM_SCORES)
+              .apply("SumUnknownTeams", this.<String>sumPerKey(hotTeamNames)));
+    }
+  }
+
+  /**
+   * Moves per-team sums from {@link SumScoresPerTeam} into larger fixed windows and sums them
+   * again, so that coarser totals come from the partial sums rather than from the raw events.
+   * Each partial sum is timestamped at the end of its window, which falls inside the larger window
+   * as long as the larger size is a multiple of the smaller.
+   */
+  static class RewindowTeamSums extends PTransform<PCollectionTuple, PCollectionTuple> {
+
+    Duration size;
+
+    RewindowTeamSums(Duration size) {
+      this.size = size;
+    }
+
+    @Override
+    public PCollectionTuple expand(PCollectionTuple sums) {
+      return PCollectionTuple
+          .of(KNOWN_TEAM_SCORES, sums.get(KNOWN_TEAM_SCORES)
+              .apply("WindowKnownTeams", Window.<KV<Integer, Integer>>into(FixedWindows.of(size)))
+              .apply("SumKnownTeams", Sum.<Integer>integersPerKey()))
+          .and(UNKNOWN_TEAM_SCORES, sums.get(UNKNOWN_TEAM_SCORES)
+              .apply("WindowUnknownTeams", Window.<KV<String, Integer>>into(FixedWindows.of(size)))
+              .apply("SumUnknownTeams", Sum.<String>integersPerKey()));
+    }
+  }
+
+  /** Writes per-team sums from {@link SumScoresPerTeam} to files, one set per window. */
+  static class WriteTeamSums extends PTransform<PCollectionTuple, PDone> {
+
+    String filepath;
+    PerWindowFiles filenamePolicy;
+
+    WriteTeamSums(String filepath, PerWindowFiles filenamePolicy) {
+      this.filepath = filepath;
+      this.filenamePolicy = filenamePolicy;
+    }
+
+    @Override
+    public PDone expand(PCollectionTuple sums) {
+
+      PCollection<KV<String, Integer>> knownTeamSums = sums.get(KNOWN_TEAM_SCORES)
+          .apply("DecodeTeamIds", ParDo.of(new DecodeTeamIdFn()));
+
+      return PCollectionList.of(knownTeamSums).and(sums.get(UNKNOWN_TEAM_SCORES))
+          .apply(Flatten.<KV<String, Integer>>pCollections())
+          .apply(ToString.kvs())
+          .apply(TextIO.write().to(filepath).withWindowedWrites()
+              .withFilenamePolicy(filenamePolicy).withNumShards(3));
+    }
+  }
+
+  /**
+   * Takes a collection of GameActionInfo events and writes the sums per team to files. Teams are
+   * summed under their {@link TeamDictionary} ids and only turned back into names for output.
+   */
+  public static class SumTeamScores
+  extends PTransform<PCollection<GameActionInfo>, PDone> {
+
+    String filepath;
+    SumScoresPerTeam sumScores = new SumScoresPerTeam();
+
+    SumTeamScores(String filepath) {
+      this.filepath = filepath;
+    }
+
+    /** Pre-aggregates scores per team within each bundle, before the shuffle. */
+    SumTeamScores withBundlePreAggregation(boolean preAggregate) {
+      sumScores.preAggregate = preAggregate;
+      return this;
+    }
+
+    /**
+     * Spreads the scores of each of {@code hotTeams}, or of every team if it is empty, over
+     * {@code fanout} intermediate keys that are combined before the final per-team sum. A fanout
+     * of 0 or 1 disables this.
+     */
+    SumTeamScores withHotKeyFanout(List<String> hotTeams, int fanout) {
+      sumScores.hotTeams = hotTeams == null ? Collections.<String>emptyList() : hotTeams;
+      sumScores.hotKeyFanout = fanout;
+      return this;
+    }
+
+    @Override
+    public PDone expand(PCollection<GameActionInfo> events) {
+      return events
+          .apply(sumScores)
+          .apply(new WriteTeamSums(filepath, new PerWindowFiles("count")));
+    }
+  }
+
+  /**
+   * Takes a collection of GameActionInfo events and writes the sums per team at several window
+   * sizes, each under its own prefix, e.g. {@code count-PT5M}, {@code count-PT1H} and
+   * {@code count-P1D}. The events are windowed and shuffled once, at the smallest size; every
+   * larger size is summed from the sums of the size below it, which must divide it evenly. Each
+   * size may be given only once.
+   */
+  public static class RollUpTeamScores
+  extends PTransform<PCollection<GameActionInfo>, PDone> {
+
+    String filepath;
+    List<Duration> granularities;
+    SumScoresPerTeam sumScores = new SumScoresPerTeam();
+
+    RollUpTeamScores(String filepath, List<Duration> granularities) {
+      checkArgument(!granularities.isEmpty(), "At least one granularity is required");
+      this.filepath = filepath;
+      this.granularities = new ArrayList<>(granularities);
+      Collections.sort(this.granularities);
+      for (int i = 1; i < this.granularities.size(); i++) {
+        Duration finer = this.granularities.get(i - 1);
+        Duration coarser = this.granularities.get(i);
+        // Each size is written under its own prefix, which two equal sizes would both write.
+        checkArgument(!coarser.equals(finer), "Granularity %s is given more than once", coarser);
+        checkArgument(coarser.getMillis() % finer.getMillis() == 0,
+            "Granularity %s is not a multiple of %s", coarser, finer);
+      }
+    }
+
+    /** Pre-aggregates scores per team within each bundle, before the shuffle. */
+    RollUpTeamScores withBundlePreAggregation(boolean preAggregate) {
+      sumScores.preAggregate = preAggregate;
+      return this;
+    }
+
+    /** Fans out hot teams in the shuffle of the events, as in {@link SumTeamScores}. */
+    RollUpTeamScores withHotKeyFanout(List<String> hotTeams, int fanout) {
+      sumScores.hotTeams = hotTeams == null ? Collections.<String>emptyList() : hotTeams;
+      sumScores.hotKeyFanout = fanout;
+      return this;
+    }
+
+    /** Returns a short name for a window size, such as PT5M, PT1H or P1D. */
+    static String label(Duration granularity) {
+      return granularity.toPeriod().normalizedStandard(PeriodType.dayTime()).toString();
+    }
+
+    @Override
+    public PDone expand(PCollection<GameActionInfo> events) {
+      Duration finest = granularities.get(0);
+      PCollectionTuple sums = events
+          .apply("Window" + label(finest), Window.<GameActionInfo>into(FixedWindows.of(finest)))
+          .apply("Sum" + label(finest), sumScores);
+
+      PDone done = null;
+      for (Duration granularity : granularities) {
+        String label = label(granularity);
+        if (!granularity.equals(finest)) {
+          sums = sums.apply("Sum" + label, new RewindowTeamSums(granularity));
+        }
+        // Rollups can span days, so their file names carry the date as well as the time.
+        done = sums.apply("Write" + label,
+            new WriteTeamSums(filepath, new PerWindowFiles("count-" + label, true)));
+      }
+      return done;
+    }
+  }
+
+  /** Takes a collection of raw log lines and writes the sums per team to files. */
   public static class CalculateTeamScores
   extends PTransform<PCollection<String>, PDone> {
 
-    String filepath;
+    SumTeamScores sumTeamScores;
 
     CalculateTeamScores(String filepath) {
-      this.filepath = filepath;
+      this.sumTeamScores = new SumTeamScores(filepath);
+    }
+
+    /** Fans out hot teams in the shuffle of the events, as in {@link SumTeamScores}. */
+    CalculateTeamScores withHotKeyFanout(List<String> hotTeams, int fanout) {
+      sumTeamScores.withHotKeyFanout(hotTeams, fanout);
+      return this;
     }
 
     @Override
@@ -218,11 +673,7 @@ public class HourlyTeamScore {
 
       return line
           .apply("ParseGameEvent", ParDo.of(new ParseEventFn()))
-          .apply(ParDo.of(new KeyScoreByTeamFn()))
-          .apply(Sum.<String>integersPerKey())
-          .apply(ToString.kvs())
-          .apply(TextIO.write().to(filepath).withWindowedWrites()
-              .withFilenamePolicy(new PerWindowFiles("count")).withNumShards(3));
+          .apply(sumTeamScores);
     }
   }
 
@@ -231,15 +682,45 @@ public class HourlyTeamScore {
 
     Options options =
         PipelineOptionsFactory.fromArgs(args).withValidation().as(Options.class);
+    if (options.getLocalFastPath()) {
+      LocalTeamScores.run(options);
+      return;
+    }
     Pipeline pipeline = Pipeline.create(options);
 
-    pipeline
-    .apply("ReadLogs", TextIO.read().from(options.getInput()))
-    .apply("SetTimestamps", WithTimestamps.of(new SetTimestampFn()))
+    PCollection<GameActionInfo> events;
+    if (options.getInputMode() != InputMode.TEXT) {
+      boolean memoryMapped = options.getInputMode() == InputMode.MAPPED;
+      events = pipeline.apply("ReadGameEvents",
+          Read.from(new GameEventSource(options.getInput(), memoryMapped)));
+    } else {
+      PCollectionTuple parsed = pipeline
+          .apply("ReadLogs", TextIO.read().from(options.getInput()))
+          .apply("ParseGameEvents", new ParseGameEvents());
 
-    .apply("FixedWindows", Window.<String>into(FixedWindows.of(ONE_HOUR)))
+      parsed.get(PARSE_ERRORS)
+      .apply("WriteParseErrors", TextIO.write().to(options.getOutputPrefix() + PARSE_ERRORS_SUFFIX));
 
-    .apply("SumTeamScores", new CalculateTeamScores(options.getOutputPrefix()));
+      events = parsed.get(PARSED_EVENTS);
+    }
+
+    if (options.getRollups() != null && !options.getRollups().isEmpty()) {
+      List<Duration> granularities = new ArrayList<>();
+      for (String rollup : options.getRollups()) {
+        granularities.add(Period.parse(rollup).toStandardDuration());
+      }
+      events
+      .apply("RollUpTeamScores", new RollUpTeamScores(options.getOutputPrefix(), granularities)
+          .withBundlePreAggregation(options.getPreAggregateInBundle())
+          .withHotKeyFanout(options.getHotTeams(), options.getHotKeyFanout()));
+    } else {
+      events
+      .apply("FixedWindows", Window.<GameActionInfo>into(FixedWindows.of(ONE_HOUR)))
+
+      .apply("SumTeamScores", new SumTeamScores(options.getOutputPrefix())
+          .withBundlePreAggregation(options.getPreAggregateInBundle())
+          .withHotKeyFanout(options.getHotTeams(), options.getHotKeyFanout()));
+    }
 
     pipeline.run();
   }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from int keys to int sums, with no boxing. Built for summing scores
+ * per team id in the hot path, so it only supports adding to a key and walking the entries.
+ * {@link Integer#MIN_VALUE} marks empty slots and cannot be used as a key.
+ *
+ * <p>Entries are walked by slot:
+ * <pre>{@code
+ * for (int slot = 0; slot < map.capacity(); slot++) {
+ *   if (map.isOccupied(slot)) {
+ *     use(map.keyAt(slot), map.valueAt(slot));
+ *   }
+ * }
+ * }</pre>
+ */
+final class IntIntHashMap {
+
+  private static final int EMPTY = Integer.MIN_VALUE;
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private int[] keys;
+  private int[] values;
+  private int size;
+
+  IntIntHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** Creates a map that holds {@code expectedSize} keys without growing. */
+  IntIntHashMap(int expectedSize) {
+    // Keep the load factor at or below one half.
+    allocate(Integer.highestOneBit(Math.max(expectedSize, 2) * 2 - 1) * 2);
+  }
+
+  /** Adds {@code delta} to the value of {@code key}, which starts out as zero. */
+  void add(int key, int delta) {
+    checkArgument(key != EMPTY, "Integer.MIN_VALUE cannot be used as a key");
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (true) {
+      int existing = keys[slot];
+      if (existing == key) {
+        values[slot] += delta;
+        return;
+      }
+      if (existing == EMPTY) {
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size * 2 > keys.length) {
+          grow();
+        }
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /** Returns the number of slots, for walking the entries. */
+  int capacity() {
+    return keys.length;
+  }
+
+  boolean isOccupied(int slot) {
+    return keys[slot] != EMPTY;
+  }
+
+  int keyAt(int slot) {
+    return keys[slot];
+  }
+
+  int valueAt(int slot) {
+    return values[slot];
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(oldKeys.length * 2);
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldKeys[slot] != EMPTY) {
+        add(oldKeys[slot], oldValues[slot]);
+      }
+    }
+  }
+
+  private static int hash(int key) {
+    // Spread dense keys such as team ids across the table.
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -15,11 +15,16 @@
  */
 package demo;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.NullableCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.io.kafka.KafkaIO;
 import org.apache.beam.sdk.io.kafka.KafkaRecord;
+import org.apache.beam.sdk.metrics.Counter;
+import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
@@ -33,6 +38,7 @@ import org.apache.beam.sdk.transforms.windowing.AfterWatermark;
 import org.apache.beam.sdk.transforms.windowing.FixedWindows;
 import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.values.KV;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
@@ -95,6 +101,11 @@ public class LeaderBoard extends HourlyTeamScore {
     @Description("Kafka Bootstrap Server")
     String getKafkaBootstrapServer();
     void setKafkaBootstrapServer(String value);
+
+    @Description("How the Injector encoded the events in Kafka: CSV or BINARY")
+    @Default.Enum("CSV")
+    EventFormat getKafkaFormat();
+    void setKafkaFormat(EventFormat value);
   }
 
   private static class SetTimestampFn
@@ -117,12 +128,86 @@ public class LeaderBoard extends HourlyTeamScore {
     }
   }
 
+  /** Decodes an event in {@link EventFormat#BINARY}, or returns null if it is corrupt. */
+  private static GameActionInfo decode(byte[] record) {
+    try {
+      return GameActionInfoCoder.of().decode(new ByteArrayInputStream(record));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static class SetBinaryTimestampFn
+  implements SerializableFunction<KV<byte[], byte[]>, Instant> {
+    @Override
+    public Instant apply(KV<byte[], byte[]> input) {
+      // Only the timestamp is read here; DecodeEventFn decodes the whole event once.
+      try {
+        Long timestamp = GameActionInfoCoder.decodeTimestamp(
+            new ByteArrayInputStream(input.getValue()));
+        if (timestamp != null) {
+          return new Instant(timestamp);
+        }
+      } catch (IOException e) {
+        // Corrupt, and dropped when decoded.
+      }
+      return Instant.now();
+    }
+  }
+
+  /** DoFn to decode binary Kafka records into GameActionInfos, counting corrupt ones. */
+  static class DecodeEventFn extends DoFn<KafkaRecord<byte[], byte[]>, GameActionInfo> {
+
+    private static final Counter numParseErrorsCounter =
+        Metrics.counter(DecodeEventFn.class, "ParseErrors");
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      GameActionInfo event = decode(c.element().getKV().getValue());
+      if (event != null) {
+        c.output(event);
+      } else {
+        numParseErrorsCounter.inc();
+      }
+    }
+  }
+
+  /** The leaderboard's windowing, with early results and late firings. */
+  private static <T> Window<T> leaderBoardWindows() {
+    return Window.<T>into(FixedWindows.of(FIVE_MINUTES))
+        .triggering(AfterWatermark.pastEndOfWindow()
+            .withEarlyFirings(AfterProcessingTime.pastFirstElementInPane()
+                .plusDelayOf(TWO_MINUTES))
+            .withLateFirings(AfterPane.elementCountAtLeast(1)))
+        .withAllowedLateness(TEN_MINUTES)
+        .accumulatingFiredPanes();
+  }
+
   public static void main(String[] args) throws Exception {
 
     Options options =
         PipelineOptionsFactory.fromArgs(args).withValidation().as(Options.class);
     Pipeline pipeline = Pipeline.create(options);
 
+    if (options.getKafkaFormat() == EventFormat.BINARY) {
+      // The records are already encoded GameActionInfos, so there is nothing to parse.
+      pipeline
+      .apply(KafkaIO.<byte[], byte[]>read()
+          .withBootstrapServers(options.getKafkaBootstrapServer())
+          .withTopic(options.getTopic())
+          .withKeyDeserializer(ByteArrayDeserializer.class)
+          .withValueDeserializer(ByteArrayDeserializer.class)
+          .withTimestampFn(new SetBinaryTimestampFn()))
+      .apply("DecodeGameEvent", ParDo.of(new DecodeEventFn()))
+
+      .apply("FixedWindows", LeaderBoard.<GameActionInfo>leaderBoardWindows())
+
+      .apply(new SumTeamScores(options.getOutputPrefix())
+          .withHotKeyFanout(options.getHotTeams(), options.getHotKeyFanout()));
+      pipeline.run();
+      return;
+    }
+
     pipeline
     .apply(KafkaIO.<String, String>read()
         .withBootstrapServers(options.getKafkaBootstrapServer())
@@ -132,15 +217,10 @@ public class LeaderBoard extends HourlyTeamScore {
         .withTimestampFn(new SetTimestampFn()))
     .apply("Values", ParDo.of(new ValuesFn()))
 
-    .apply("FixedWindows", Window.<String>into(FixedWindows.of(FIVE_MINUTES))
-        .triggering(AfterWatermark.pastEndOfWindow()
-            .withEarlyFirings(AfterProcessingTime.pastFirstElementInPane()
-                .plusDelayOf(TWO_MINUTES))
-            .withLateFirings(AfterPane.elementCountAtLeast(1)))
-        .withAllowedLateness(TEN_MINUTES)
-        .accumulatingFiredPanes())
+    .apply("FixedWindows", LeaderBoard.<String>leaderBoardWindows())
 
-    .apply("ExtractTeamScore", new CalculateTeamScores(options.getOutputPrefix()));
+    .apply("ExtractTeamScore", new CalculateTeamScores(options.getOutputPrefix())
+        .withHotKeyFanout(options.getHotTeams(), options.getHotKeyFanout()));
 
     pipeline.run();
   }
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.beam.sdk.io.BoundedSource;
+import org.apache.beam.sdk.io.BoundedSource.BoundedReader;
+import org.apache.beam.sdk.io.DefaultFilenamePolicy;
+import org.apache.beam.sdk.io.FileBasedSink.FilenamePolicy.WindowedContext;
+import org.apache.beam.sdk.io.FileSystems;
+import org.apache.beam.sdk.io.fs.ResourceId;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.util.MimeTypes;
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import demo.HourlyTeamScore.GameActionInfo;
+import demo.HourlyTeamScore.PerWindowFiles;
+
+/**
+ * Computes the hourly team scores of {@link HourlyTeamScore} on a single machine, without a
+ * runner. The input is split into byte ranges by a memory-mapped {@link GameEventSource}, the
+ * ranges are read and summed in parallel on a {@link ForkJoinPool} into per-task
+ * {@link IntIntHashMap}s, and the sums are merged as the tasks join.
+ *
+ * <p>The output files have the same names and hold the same lines as the pipeline's. Which of the
+ * three shards of a window a team lands in, and the order of the lines within a shard, are up to
+ * the runner in the pipeline; here teams are assigned to shards by name and sorted. Lines that
+ * fail to parse are written under {@code <outputPrefix>-parse-errors}, as the pipeline's TEXT
+ * input mode writes them.
+ *
+ * <p>Only the hourly sums are computed. The options that shape the pipeline's shuffle or its
+ * windows, such as {@code --rollups} or {@code --hotKeyFanout}, are rejected rather than ignored.
+ */
+final class LocalTeamScores {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalTeamScores.class);
+
+  private static final int NUM_SHARDS = 3;
+  // Several ranges per thread, so that threads finishing early can steal work.
+  private static final int RANGES_PER_THREAD = 4;
+  private static final long MIN_RANGE_SIZE = 1 << 24;
+
+  private static final FixedWindows WINDOWS = FixedWindows.of(HourlyTeamScore.ONE_HOUR);
+
+  private LocalTeamScores() {}
+
+  /** Reads {@code --input}, sums it and writes the scores under {@code --outputPrefix}. */
+  static void run(HourlyTeamScore.Options options) throws Exception {
+    checkArgument(options.getRollups() == null || options.getRollups().isEmpty(),
+        "--localFastPath only computes hourly scores, so it cannot take --rollups");
+    checkArgument(!options.getPreAggregateInBundle() && options.getHotTeams() == null
+        && options.getHotKeyFanout() <= 1,
+        "--preAggregateInBundle, --hotTeams and --hotKeyFanout tune the pipeline's shuffle, "
+        + "which --localFastPath does not have");
+    FileSystems.setDefaultPipelineOptions(options);
+    int parallelism = options.getLocalParallelism() > 0
+        ? options.getLocalParallelism() : Runtime.getRuntime().availableProcessors();
+
+    // The input is always parsed from its raw bytes, mapped unless BYTES asks to stream it.
+    GameEventSource source = new GameEventSource(options.getInput(),
+        options.getInputMode() != HourlyTeamScore.InputMode.BYTES);
+    long rangeSize = Math.max(MIN_RANGE_SIZE,
+        source.getEstimatedSizeBytes(options) / (parallelism * RANGES_PER_THREAD));
+    List<? extends BoundedSource<GameActionInfo>> ranges = source.split(rangeSize, options);
+    LOG.info("Summing {} ranges of {} on {} threads.", ranges.size(), options.getInput(),
+        parallelism);
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    TeamSums sums;
+    try {
+      sums = pool.invoke(new SumRanges(ranges, 0, ranges.size(), options));
+    } finally {
+      pool.shutdown();
+    }
+
+    ResourceId outputDirectory =
+        FileSystems.matchNewResource(options.getOutputPrefix(), false).getCurrentDirectory();
+    sums.write(outputDirectory, new PerWindowFiles("count"));
+    // Named as TextIO names the pipeline's parse errors, when written as a single shard.
+    writeParseErrors(DefaultFilenamePolicy.constructName(
+        options.getOutputPrefix() + HourlyTeamScore.PARSE_ERRORS_SUFFIX,
+        DefaultFilenamePolicy.DEFAULT_SHARD_TEMPLATE, "", 0, 1),
+        sums.parseErrors);
+  }
+
+  private static void writeParseErrors(String fileName, List<String> parseErrors)
+      throws IOException {
+    LOG.info("Writing {} parse errors to {}.", parseErrors.size(), fileName);
+    try (OutputStream out = Channels.newOutputStream(
+        FileSystems.create(FileSystems.matchNewResource(fileName, false), MimeTypes.TEXT))) {
+      for (String line : parseErrors) {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+      }
+    }
+  }
+
+  /** Sums ranges {@code [from, to)}, splitting them in halves until one range is left. */
+  private static class SumRanges extends RecursiveTask<TeamSums> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<? extends BoundedSource<GameActionInfo>> ranges;
+    private final int from;
+    private final int to;
+    private final PipelineOptions options;
+
+    SumRanges(List<? extends BoundedSource<GameActionInfo>> ranges, int from, int to,
+        PipelineOptions options) {
+      this.ranges = ranges;
+      this.from = from;
+      this.to = to;
+      this.options = options;
+    }
+
+    @Override
+    protected TeamSums compute() {
+      if (to - from == 0) {
+        return new TeamSums();
+      }
+      if (to - from == 1) {
+        try {
+          return sumRange(ranges.get(from));
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      int mid = (from + to) >>> 1;
+      SumRanges left = new SumRanges(ranges, from, mid, options);
+      left.fork();
+      TeamSums right = new SumRanges(ranges, mid, to, options).compute();
+      // Merged in input order, so that the parse errors keep the order of the lines.
+      TeamSums sums = left.join();
+      sums.merge(right);
+      return sums;
+    }
+
+    private TeamSums sumRange(BoundedSource<GameActionInfo> range) throws IOException {
+      TeamSums sums = new TeamSums();
+      try (BoundedReader<GameActionInfo> reader = range.createReader(options)) {
+        ((GameEventSource.GameEventReader) reader).collectParseErrors(sums.parseErrors);
+        for (boolean more = reader.start(); more; more = reader.advance()) {
+          sums.add(reader.getCurrent(), reader.getCurrentTimestamp());
+        }
+      }
+      return sums;
+    }
+  }
+
+  /** Sums of scores per team and hourly window, keyed like {@code KeyScoreByTeamFn} keys them. */
+  static class TeamSums {
+
+    private final Map<IntervalWindow, IntIntHashMap> knownTeams = new HashMap<>();
+    private final Map<IntervalWindow, Map<String, Integer>> unknownTeams = new HashMap<>();
+    final List<String> parseErrors = new ArrayList<>();
+
+    // Events mostly arrive in time order, so remember the last window summed into.
+    private IntervalWindow lastWindow;
+    private IntIntHashMap lastSums;
+
+    void add(GameActionInfo event, Instant timestamp) {
+      if (lastWindow == null
+          || timestamp.isBefore(lastWindow.start()) || !timestamp.isBefore(lastWindow.end())) {
+        lastWindow = WINDOWS.assignWindow(timestamp);
+        lastSums = knownTeams.get(lastWindow);
+        if (lastSums == null) {
+          lastSums = new IntIntHashMap(TeamDictionary.size());
+          knownTeams.put(lastWindow, lastSums);
+        }
+      }
+      int teamId = TeamDictionary.idOf(event.getTeam());
+      if (teamId != TeamDictionary.UNKNOWN) {
+        lastSums.add(teamId, event.getScore());
+      } else {
+        addUnknown(lastWindow, event.getTeam(), event.getScore());
+      }
+    }
+
+    private void addUnknown(IntervalWindow window, String team, int score) {
+      Map<String, Integer> sums = unknownTeams.get(window);
+      if (sums == null) {
+        sums = new HashMap<>();
+        unknownTeams.put(window, sums);
+      }
+      Integer sum = sums.get(team);
+      sums.put(team, sum == null ? score : sum + score);
+    }
+
+    /** Adds all of {@code other}'s sums, and then its parse errors, to these. */
+    void merge(TeamSums other) {
+      for (Map.Entry<IntervalWindow, IntIntHashMap> entry : other.knownTeams.entrySet()) {
+        IntIntHashMap sums = knownTeams.get(entry.getKey());
+        if (sums == null) {
+          knownTeams.put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        IntIntHashMap otherSums = entry.getValue();
+        for (int slot = 0; slot < otherSums.capacity(); slot++) {
+          if (otherSums.isOccupied(slot)) {
+            sums.add(otherSums.keyAt(slot), otherSums.valueAt(slot));
+          }
+        }
+      }
+      for (Map.Entry<IntervalWindow, Map<String, Integer>> entry
+          : other.unknownTeams.entrySet()) {
+        for (Map.Entry<String, Integer> sum : entry.getValue().entrySet()) {
+          addUnknown(entry.getKey(), sum.getKey(), sum.getValue());
+        }
+      }
+      parseErrors.addAll(other.parseErrors);
+    }
+
+    /** Writes one set of {@code team,score} files per window, named by {@code filenamePolicy}. */
+    void write(ResourceId outputDirectory, PerWindowFiles filenamePolicy) throws IOException {
+      Map<IntervalWindow, Map<String, Integer>> windows = new HashMap<>();
+      for (Map.Entry<IntervalWindow, IntIntHashMap> entry : knownTeams.entrySet()) {
+        IntIntHashMap sums = entry.getValue();
+        Map<String, Integer> named = new HashMap<>();
+        for (int slot = 0; slot < sums.capacity(); slot++) {
+          if (sums.isOccupied(slot)) {
+            named.put(TeamDictionary.nameOf(sums.keyAt(slot)), sums.valueAt(slot));
+          }
+        }
+        windows.put(entry.getKey(), named);
+      }
+      for (Map.Entry<IntervalWindow, Map<String, Integer>> entry : unknownTeams.entrySet()) {
+        Map<String, Integer> named = windows.get(entry.getKey());
+        if (named == null) {
+          named = new HashMap<>();
+          windows.put(entry.getKey(), named);
+        }
+        named.putAll(entry.getValue());
+      }
+
+      for (Map.Entry<IntervalWindow, Map<String, Integer>> entry : windows.entrySet()) {
+        List<List<String>> shards = new ArrayList<>();
+        for (int shard = 0; shard < NUM_SHARDS; shard++) {
+          shards.add(new ArrayList<String>());
+        }
+        for (Map.Entry<String, Integer> sum : new TreeMap<>(entry.getValue()).entrySet()) {
+          // The same line ToString.kvs() produces in the pipeline.
+          String line = sum.getKey() + "," + sum.getValue();
+          shards.get((sum.getKey().hashCode() & Integer.MAX_VALUE) % NUM_SHARDS).add(line);
+        }
+        for (int shard = 0; shard < NUM_SHARDS; shard++) {
+          if (shards.get(shard).isEmpty()) {
+            continue;
+          }
+          ResourceId file = filenamePolicy.windowedFilename(outputDirectory,
+              new WindowedContext(entry.getKey(), PaneInfo.ON_TIME_AND_ONLY_FIRING, shard,
+                  NUM_SHARDS),
+              "");
+          try (OutputStream out = Channels.newOutputStream(
+              FileSystems.create(file, MimeTypes.TEXT))) {
+            for (String line : shards.get(shard)) {
+              out.write(line.getBytes(StandardCharsets.UTF_8));
+              out.write('\n');
+            }
+          }
+        }
+      }
+    }
+  }
+}
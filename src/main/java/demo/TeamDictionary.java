@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The universe of team names the game can produce, each a color followed by an animal, and a
+ * dense integer id for each of them. Pipelines shuffle these small ids instead of the names.
+ */
+public final class TeamDictionary {
+
+  /** Returned by {@link #idOf} for names that are not in the dictionary. */
+  public static final int UNKNOWN = -1;
+
+  // Lists used to generate random team names.
+  public static final List<String> COLORS = Collections.unmodifiableList(Arrays.asList(
+      "Magenta", "AliceBlue", "Almond", "Amaranth", "Amber",
+      "Amethyst", "AndroidGreen", "AntiqueBrass", "Fuchsia", "Ruby", "AppleGreen",
+      "Apricot", "Aqua", "ArmyGreen", "Asparagus", "Auburn", "Azure", "Banana",
+      "Beige", "Bisque", "BarnRed", "BattleshipGrey"));
+
+  public static final List<String> ANIMALS = Collections.unmodifiableList(Arrays.asList(
+      "Echidna", "Koala", "Wombat", "Marmot", "Quokka", "Kangaroo", "Dingo", "Numbat", "Emu",
+      "Wallaby", "CaneToad", "Bilby", "Possum", "Cassowary", "Kookaburra", "Platypus",
+      "Bandicoot", "Cockatoo", "Antechinus"));
+
+  private static final String[] NAMES = new String[COLORS.size() * ANIMALS.size()];
+  private static final Map<String, Integer> IDS = new HashMap<>();
+
+  static {
+    for (int color = 0; color < COLORS.size(); color++) {
+      for (int animal = 0; animal < ANIMALS.size(); animal++) {
+        int id = color * ANIMALS.size() + animal;
+        NAMES[id] = COLORS.get(color) + ANIMALS.get(animal);
+        IDS.put(NAMES[id], id);
+      }
+    }
+  }
+
+  private TeamDictionary() {}
+
+  /** Returns the number of known teams. Ids range from 0 to {@code size() - 1}. */
+  public static int size() {
+    return NAMES.length;
+  }
+
+  /** Returns the id of the named team, or {@link #UNKNOWN} if it is not a known team. */
+  public static int idOf(String team) {
+    Integer id = IDS.get(team);
+    return id == null ? UNKNOWN : id;
+  }
+
+  /** Returns the name of the team with the given id. */
+  public static String nameOf(int id) {
+    return NAMES[id];
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Instant;
+
+/**
+ * Generates a fixed amount of game data into sharded files as fast as the machine allows, for
+ * building batch benchmark inputs offline. Events are stamped with simulated times spread evenly
+ * over a time range rather than with the wall clock, and each shard covers its own consecutive
+ * part of that range, so the shards are written in parallel and each file is in time order.
+ *
+ * <p>Shards are named {@code <fileName>-00000-of-00016} and so on. Unlike the live injector, no
+ * late data is generated. Each shard's generator is warmed up on the hour before its range, so
+ * its teams come and go as they would mid-game rather than all starting with the shard.
+ *
+ * <p>With a seed, each shard draws from its own seeded random numbers, so a shard's contents
+ * depend only on the seed, the event count, the time range and the number of shards. The shards
+ * can then be split across several processes, each writing the shards {@code s} with
+ * {@code s % shardCount == shardIndex}, and together they write exactly what one process would.
+ */
+class BulkGenerator {
+
+  private static final int BATCH_SIZE = 10000;
+  // Events generated to estimate the average line length when sizing a dataset by bytes.
+  private static final int SAMPLE_SIZE = 100000;
+  private static final long PROGRESS_REPORT_SECONDS = 10;
+  // Longer than the longest team lives, 40 minutes, so every starting team has been replaced by
+  // one that started at its own time. One event per simulated second checks each team often.
+  private static final long WARM_UP_MILLIS = 60 * 60 * 1000;
+  private static final int WARM_UP_EVENTS = 3600;
+
+  private final String fileName;
+  private final int numShards;
+  private final long startMillis;
+  private final long endMillis;
+  private final FileSink.Compression compression;
+  private final Long seed;
+  private final AtomicLong generated = new AtomicLong();
+
+  /** Creates a generator, whose random numbers are seeded with {@code seed} unless it is null. */
+  BulkGenerator(String fileName, int numShards, long startMillis, long endMillis,
+      FileSink.Compression compression, Long seed) {
+    checkArgument(numShards > 0, "The number of shards must be positive, but was %s", numShards);
+    checkArgument(startMillis < endMillis, "The time range to generate is empty");
+    this.fileName = fileName;
+    this.numShards = numShards;
+    this.startMillis = startMillis;
+    this.endMillis = endMillis;
+    this.compression = compression;
+    this.seed = seed;
+  }
+
+  private Random random(int stream) {
+    return seed == null ? new Random() : EventGenerator.seededRandom(seed, stream);
+  }
+
+  /** Returns about how many events make up {@code totalBytes} of log lines. */
+  long eventsForBytes(long totalBytes) {
+    // The sample gets a stream of its own, after those of the shards.
+    EventBatch sample = new EventGenerator(0, 1, startMillis, random(numShards))
+        .generateBatch(SAMPLE_SIZE, startMillis, endMillis);
+    long sampleBytes = sample.lines().remaining();
+    return Math.max(1, totalBytes * SAMPLE_SIZE / sampleBytes);
+  }
+
+  /**
+   * Generates this process's part of {@code totalEvents} events, the shards {@code s} with
+   * {@code s % shardCount == shardIndex}, on {@code numThreads} threads.
+   */
+  void generate(long totalEvents, int numThreads, int shardIndex, int shardCount)
+      throws Exception {
+    checkArgument(shardIndex >= 0 && shardIndex < shardCount,
+        "No shard index %s of %s", shardIndex, shardCount);
+    System.out.println("Generating " + totalEvents + " events from " + new Instant(startMillis)
+        + " to " + new Instant(endMillis) + " into " + numShards + " shards of " + fileName
+        + (shardCount > 1 ? ", writing those " + shardIndex + " mod " + shardCount : ""));
+    long startedMillis = System.currentTimeMillis();
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, numShards));
+    List<Future<Void>> shards = new ArrayList<>();
+    long eventsToGenerate = 0;
+    for (int shard = shardIndex; shard < numShards; shard += shardCount) {
+      // Spread the remainder over the first shards.
+      final long numEvents = totalEvents / numShards + (shard < totalEvents % numShards ? 1 : 0);
+      final int thisShard = shard;
+      eventsToGenerate += numEvents;
+      shards.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          generateShard(thisShard, numEvents);
+          return null;
+        }
+      }));
+    }
+    pool.shutdown();
+    while (!pool.awaitTermination(PROGRESS_REPORT_SECONDS, TimeUnit.SECONDS)) {
+      System.out.println("Generated " + generated.get() + " of " + eventsToGenerate + " events.");
+    }
+    for (Future<Void> shard : shards) {
+      // Rethrows the failure of any shard.
+      shard.get();
+    }
+    long elapsedMillis = Math.max(1, System.currentTimeMillis() - startedMillis);
+    System.out.println("Generated " + generated.get() + " events in " + elapsedMillis / 1000
+        + "s, " + generated.get() * 1000 / elapsedMillis + " events/s.");
+  }
+
+  private void generateShard(int shard, long numEvents) throws IOException {
+    long shardStart = startMillis + (endMillis - startMillis) * shard / numShards;
+    long shardEnd = startMillis + (endMillis - startMillis) * (shard + 1) / numShards;
+    String shardName = String.format("%s-%05d-of-%05d", fileName, shard, numShards);
+    Files.deleteIfExists(Paths.get(
+        compression == FileSink.Compression.GZIP ? shardName + ".gz" : shardName));
+
+    // A fresh generator's teams all start together, and would all expire within minutes of each
+    // other at every shard boundary. Playing the hour before the shard first, and discarding it,
+    // staggers the teams' ages as in a continuous game.
+    long warmUpStart = shardStart - WARM_UP_MILLIS;
+    EventGenerator generator = new EventGenerator(0, 1, warmUpStart, random(shard));
+    generator.generateBatch(WARM_UP_EVENTS, warmUpStart, shardStart);
+    // In floating point, as the range times the event count can overflow a long.
+    double millisPerEvent = (double) (shardEnd - shardStart) / numEvents;
+    try (FileSink sink = new FileSink(shardName, 0, 0, compression)) {
+      for (long done = 0; done < numEvents; ) {
+        int batchSize = (int) Math.min(BATCH_SIZE, numEvents - done);
+        long batchStart = shardStart + (long) (millisPerEvent * done);
+        long batchEnd = shardStart + (long) (millisPerEvent * (done + batchSize));
+        sink.write(generator.generateBatch(batchSize, batchStart, batchEnd));
+        done += batchSize;
+        generated.addAndGet(batchSize);
+      }
+    }
+  }
+}
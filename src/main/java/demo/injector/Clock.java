@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The time the Injector's events happen at. Team lifetimes, event timestamps and late data delays
+ * are all measured on one clock, so with a simulated clock a day of game play can be generated
+ * in much less than a day while every event keeps the shape it has in real time.
+ */
+abstract class Clock {
+
+  /** The wall clock. */
+  static final Clock SYSTEM = new Clock() {
+    @Override
+    long millis() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+      return "wall clock";
+    }
+  };
+
+  /** Returns the current time, in milliseconds since the epoch. */
+  abstract long millis();
+
+  /** Returns a clock that always reads {@code millis}. */
+  static Clock fixed(final long millis) {
+    return new Clock() {
+      @Override
+      long millis() {
+        return millis;
+      }
+
+      @Override
+      public String toString() {
+        return "fixed clock at " + millis;
+      }
+    };
+  }
+
+  /**
+   * Returns a clock that reads {@code startMillis} now and from then on runs {@code speedup}
+   * times as fast as the wall clock.
+   */
+  static Clock simulated(final long startMillis, final double speedup) {
+    checkArgument(speedup > 0, "The speedup must be positive, but was %s", speedup);
+    final long startNanos = System.nanoTime();
+    return new Clock() {
+      @Override
+      long millis() {
+        return startMillis + (long) ((System.nanoTime() - startNanos) / 1e6 * speedup);
+      }
+
+      @Override
+      public String toString() {
+        return "simulated clock from " + startMillis + " at " + speedup + "x";
+      }
+    };
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import demo.EventFormat;
+import demo.injector.EventGenerator.TeamInfo;
+
+/**
+ * A batch of events from an {@link EventGenerator}: each event's log line, its event time and its
+ * team. A batch is generated once and then handed to every sink, so all sinks publish the same
+ * events. It is filled by the generator and only read after that, so sinks on other threads can
+ * share it.
+ *
+ * <p>The lines are encoded by an {@link EventEncoder} straight into one byte array, each ending
+ * with a newline, so a file sink can write the batch without any per-event copies. The batch also
+ * keeps each event's fields, so that sinks can encode them in other formats without parsing the
+ * lines.
+ */
+class EventBatch {
+
+  // Room for a typical line, so most batches never grow their bytes.
+  private static final int BYTES_PER_EVENT = 80;
+
+  private final int[] lineEnds;
+  private final long[] eventTimes;
+  private final TeamInfo[] teams;
+  // The encoded user of each event, or null for a corrupt event.
+  private final byte[][] users;
+  private final int[] scores;
+  private final int delayInMillis;
+  private byte[] bytes;
+  private int length;
+  private int size;
+
+  EventBatch(int capacity, int delayInMillis) {
+    this.lineEnds = new int[capacity];
+    this.eventTimes = new long[capacity];
+    this.teams = new TeamInfo[capacity];
+    this.users = new byte[capacity][];
+    this.scores = new int[capacity];
+    this.delayInMillis = delayInMillis;
+    this.bytes = new byte[capacity * BYTES_PER_EVENT];
+  }
+
+  /** Appends {@code b} to the line of the event being added. */
+  void put(byte b) {
+    if (length == bytes.length) {
+      bytes = Arrays.copyOf(bytes, bytes.length * 2);
+    }
+    bytes[length++] = b;
+  }
+
+  /** Appends {@code b} to the line of the event being added. */
+  void put(byte[] b) {
+    if (length + b.length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + b.length));
+    }
+    System.arraycopy(b, 0, bytes, length, b.length);
+    length += b.length;
+  }
+
+  /**
+   * Ends the line put since the last event, and adds it as an event with the given fields.
+   * {@code user} is null for a corrupt event.
+   */
+  void endEvent(TeamInfo team, byte[] user, int score, long eventTime) {
+    put((byte) '\n');
+    lineEnds[size] = length;
+    eventTimes[size] = eventTime;
+    teams[size] = team;
+    users[size] = user;
+    scores[size] = score;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns how far the events in this batch lag behind the time they were generated. */
+  int delayInMillis() {
+    return delayInMillis;
+  }
+
+  /** Returns all of the lines, each ending with a newline, as written to a file. */
+  ByteBuffer lines() {
+    return ByteBuffer.wrap(bytes, 0, length).asReadOnlyBuffer();
+  }
+
+  /** Returns the log line of event {@code i} as UTF-8, without its newline. */
+  byte[] lineBytes(int i) {
+    return Arrays.copyOfRange(bytes, lineStart(i), lineEnds[i] - 1);
+  }
+
+  /** Returns the length of the log line of event {@code i} in UTF-8, without its newline. */
+  int lineLength(int i) {
+    return lineEnds[i] - 1 - lineStart(i);
+  }
+
+  /** Returns the log line of event {@code i}, as written to every sink. */
+  String line(int i) {
+    return new String(bytes, lineStart(i), lineLength(i), StandardCharsets.UTF_8);
+  }
+
+  private int lineStart(int i) {
+    return i == 0 ? 0 : lineEnds[i - 1];
+  }
+
+  /** Returns event {@code i} in {@link EventFormat#BINARY}. */
+  byte[] binaryRecord(int i) {
+    if (users[i] == null) {
+      return new byte[0];
+    }
+    return EventEncoder.encodeBinary(users[i], teams[i].teamNameBytes, scores[i], eventTimes[i]);
+  }
+
+  /** Returns the event time of event {@code i}, in milliseconds since the epoch. */
+  long eventTime(int i) {
+    return eventTimes[i];
+  }
+
+  /** Returns the team of event {@code i} as UTF-8, in an array that must not be modified. */
+  byte[] teamBytes(int i) {
+    return teams[i].teamNameBytes;
+  }
+
+  /**
+   * Returns the user of event {@code i} as UTF-8, in an array that must not be modified, or null
+   * if the event is corrupt.
+   */
+  byte[] userBytes(int i) {
+    return users[i];
+  }
+
+  /** Returns the team of event {@code i}. */
+  String team(int i) {
+    return teams[i].getTeamName();
+  }
+}
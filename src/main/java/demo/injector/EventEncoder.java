@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import demo.EventFormat;
+import demo.GameActionInfoCoder;
+
+/**
+ * Encodes the Injector's events into the bytes of an {@link EventBatch}, as
+ * {@code user,team,score,timestamp_in_ms,readable_time}, without building any strings. Names come
+ * already encoded from the teams, numbers are written digit by digit, and the readable time's
+ * date and time of day are formatted once per second and then reused.
+ *
+ * <p>An encoder may be shared by several threads.
+ *
+ * <p>Events can also be encoded in {@link EventFormat#BINARY}, by {@link GameActionInfoCoder}
+ * straight from their fields.
+ */
+class EventEncoder {
+
+  // The readable time up to its milliseconds, which are appended separately.
+  private static final DateTimeFormatter SECOND_FORMAT =
+      DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.")
+      .withZone(DateTimeZone.forTimeZone(TimeZone.getTimeZone("PST")));
+  // Enough for the flags, name lengths, score and timestamp of a binary event.
+  private static final int BINARY_OVERHEAD_BYTES = 16;
+  private static final byte[] CORRUPT_EVENT =
+      "THIS LINE REPRESENTS CORRUPT DATA AND WILL CAUSE A PARSE ERROR"
+      .getBytes(StandardCharsets.UTF_8);
+
+  /** The formatted prefix of the readable times within one second. */
+  private static class SecondPrefix {
+    final long second;
+    final byte[] bytes;
+
+    SecondPrefix(long second, byte[] bytes) {
+      this.second = second;
+      this.bytes = bytes;
+    }
+  }
+
+  // Replaced as a whole when the second changes, so threads never see a torn prefix.
+  private volatile SecondPrefix lastPrefix = new SecondPrefix(Long.MIN_VALUE, null);
+
+  /**
+   * Encodes an event by {@code user} of {@code team}, with its timestamp, followed by the readable
+   * time of {@code currTime}.
+   */
+  void encode(EventBatch batch, byte[] user, byte[] team, int score, long eventTime,
+      long currTime) {
+    batch.put(user);
+    batch.put((byte) ',');
+    batch.put(team);
+    batch.put((byte) ',');
+    putDecimal(batch, score);
+    encodeTimeInfo(batch, eventTime, currTime);
+  }
+
+  /** Encodes a line that fails to parse, still followed by the time info. */
+  void encodeCorrupt(EventBatch batch, long eventTime, long currTime) {
+    batch.put(CORRUPT_EVENT);
+    encodeTimeInfo(batch, eventTime, currTime);
+  }
+
+  private void encodeTimeInfo(EventBatch batch, long eventTime, long currTime) {
+    batch.put((byte) ',');
+    putDecimal(batch, eventTime);
+    batch.put((byte) ',');
+    // Add a (redundant) 'human-readable' date string to make the data semantics more clear.
+    long second = currTime / 1000;
+    SecondPrefix prefix = lastPrefix;
+    if (prefix.second != second) {
+      prefix = new SecondPrefix(second,
+          SECOND_FORMAT.print(second * 1000).getBytes(StandardCharsets.UTF_8));
+      lastPrefix = prefix;
+    }
+    batch.put(prefix.bytes);
+    int millis = (int) (currTime - second * 1000);
+    batch.put((byte) ('0' + millis / 100));
+    batch.put((byte) ('0' + millis / 10 % 10));
+    batch.put((byte) ('0' + millis % 10));
+  }
+
+  /** Returns an event encoded by {@link GameActionInfoCoder}, in {@link EventFormat#BINARY}. */
+  static byte[] encodeBinary(byte[] user, byte[] team, int score, long timestamp) {
+    ByteArrayOutputStream record = new ByteArrayOutputStream(
+        BINARY_OVERHEAD_BYTES + user.length + team.length);
+    try {
+      GameActionInfoCoder.encodeFields(user, team, score, timestamp, record);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return record.toByteArray();
+  }
+
+  /** Writes the decimal digits of a non-negative {@code value}. */
+  private static void putDecimal(EventBatch batch, long value) {
+    long divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      batch.put((byte) ('0' + value / divisor % 10));
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import demo.TeamDictionary;
+
+/**
+ * Generates the Injector's game events for one slice of the teams in the {@link TeamDictionary}.
+ * A generator owns its random numbers and its live teams, so each generator thread can run its
+ * own without sharing any state with the others. Slice {@code i} of {@code n} draws its teams from
+ * the ids {@code i}, {@code i + n}, {@code i + 2n} and so on.
+ *
+ * <p>The game has the same {@link #NUM_LIVE_TEAMS} live teams however many slices it is split
+ * into, so there can be at most that many slices, each with at least one live team.
+ *
+ * <p>Events happen at the time of the generator's {@link Clock}, which also ages the teams.
+ */
+class EventGenerator {
+
+  /** The number of teams playing at any time, over all slices. */
+  static final int NUM_LIVE_TEAMS = 15;
+
+  // The total number of robots in the system.
+  private static final int NUM_ROBOTS = 20;
+  // Determines the chance that a team will have a robot team member.
+  private static final int ROBOT_PROBABILITY = 3;
+  private static final int BASE_MEMBERS_PER_TEAM = 5;
+  private static final int MEMBERS_PER_TEAM = 15;
+  private static final int MAX_SCORE = 20;
+  private static final int PARSE_ERROR_RATE = 900000;
+
+  // The minimum time a 'team' can live.
+  private static final int BASE_TEAM_EXPIRATION_TIME_IN_MINS = 20;
+  private static final int TEAM_EXPIRATION_TIME_IN_MINS = 20;
+
+  private final Random random;
+  private final int slice;
+  private final int numSlices;
+  private final int numTeamsInSlice;
+  private final Clock clock;
+  private final EventEncoder encoder = new EventEncoder();
+
+  // The live teams.
+  private final TeamRegistry liveTeams;
+
+  /** Creates a generator for all of the teams. */
+  EventGenerator() {
+    this(0, 1);
+  }
+
+  /** Creates a generator for slice {@code slice} of {@code numSlices} of the teams. */
+  EventGenerator(int slice, int numSlices) {
+    this(slice, numSlices, Clock.SYSTEM);
+  }
+
+  /**
+   * Creates a generator for slice {@code slice} of {@code numSlices} of the teams, whose first
+   * teams start at {@code startMillis} and whose events are drawn from {@code random}. Its events
+   * are only timed by {@link #generateBatch(int, long, long)}.
+   */
+  EventGenerator(int slice, int numSlices, long startMillis, Random random) {
+    this(slice, numSlices, Clock.fixed(startMillis), random);
+  }
+
+  /**
+   * Creates a generator for slice {@code slice} of {@code numSlices} of the teams, whose events
+   * happen at the time on {@code clock}.
+   */
+  EventGenerator(int slice, int numSlices, Clock clock) {
+    this(slice, numSlices, clock, new Random());
+  }
+
+  /**
+   * Creates a generator for slice {@code slice} of {@code numSlices} of the teams, whose events
+   * happen at the time on {@code clock} and are drawn from {@code random}. Given the same seed
+   * and the same calls, a generator produces the same events.
+   */
+  EventGenerator(int slice, int numSlices, Clock clock, Random random) {
+    checkArgument(numSlices >= 1 && numSlices <= NUM_LIVE_TEAMS,
+        "Cannot split %s live teams into %s slices", NUM_LIVE_TEAMS, numSlices);
+    checkArgument(slice >= 0 && slice < numSlices, "No slice %s of %s", slice, numSlices);
+    this.slice = slice;
+    this.numSlices = numSlices;
+    this.numTeamsInSlice = (TeamDictionary.size() - slice + numSlices - 1) / numSlices;
+    this.clock = clock;
+    this.random = random;
+
+    // Start off with some random live teams, spreading them over the slices.
+    liveTeams = new TeamRegistry((NUM_LIVE_TEAMS - slice + numSlices - 1) / numSlices);
+    long startMillis = clock.millis();
+    for (int slot = 0; slot < liveTeams.size(); slot++) {
+      TeamInfo newTeam = newTeam(startMillis);
+      liveTeams.set(slot, newTeam);
+      System.out.println("[+" + newTeam + "]");
+    }
+  }
+
+  /**
+   * Returns the random numbers for stream {@code stream} of those seeded with {@code seed}, where
+   * the streams are the shards or slices of one run. The stream is mixed into the seed so that
+   * neighbouring streams don't start out correlated, as they would with consecutive seeds.
+   */
+  static Random seededRandom(long seed, int stream) {
+    return new Random(seed ^ (stream + 1) * 0x9E3779B97F4A7C15L);
+  }
+
+  /**
+   * A class for holding team info: the name of the team, when it started,
+   * and the current team members. Teams may but need not include one robot team member.
+   */
+  static class TeamInfo {
+    final String teamName;
+    final long startTimeInMillis;
+    final int expirationPeriod;
+    // The team might but need not include 1 robot. Will be non-null if so.
+    final String robot;
+    final int numMembers;
+    // The names encoded once for the team's lifetime, as every event repeats them.
+    final byte[] teamNameBytes;
+    final byte[] robotBytes;
+    final byte[][] userBytes;
+
+    private TeamInfo(String teamName, long startTimeInMillis, String robot, Random random) {
+      this.teamName = teamName;
+      this.startTimeInMillis = startTimeInMillis;
+      // How long until this team is dissolved.
+      this.expirationPeriod = random.nextInt(TEAM_EXPIRATION_TIME_IN_MINS)
+          + BASE_TEAM_EXPIRATION_TIME_IN_MINS;
+      this.robot = robot;
+      // Determine the number of team members.
+      numMembers = random.nextInt(MEMBERS_PER_TEAM) + BASE_MEMBERS_PER_TEAM;
+      this.teamNameBytes = teamName.getBytes(StandardCharsets.UTF_8);
+      this.robotBytes = robot == null ? null : robot.getBytes(StandardCharsets.UTF_8);
+      this.userBytes = new byte[numMembers][];
+      for (int userNum = 0; userNum < numMembers; userNum++) {
+        userBytes[userNum] = ("user" + userNum + "_" + teamName).getBytes(StandardCharsets.UTF_8);
+      }
+    }
+
+    String getTeamName() {
+      return teamName;
+    }
+    String getRobot() {
+      return robot;
+    }
+
+    long getStartTimeInMillis() {
+      return startTimeInMillis;
+    }
+    long getEndTimeInMillis() {
+      return startTimeInMillis + (expirationPeriod * 60 * 1000);
+    }
+    byte[] getRandomUser(Random random) {
+      int userNum = random.nextInt(numMembers);
+      return userBytes[userNum];
+    }
+
+    int numMembers() {
+      return numMembers;
+    }
+
+    @Override
+    public String toString() {
+      return "(" + teamName + ", num members: " + numMembers() + ", starting at: "
+          + startTimeInMillis + ", expires in: " + expirationPeriod + ", robot: " + robot + ")";
+    }
+  }
+
+  /**
+   * Get and return a random team. If the selected team is too old w.r.t its expiration, replace
+   * it with a new team.
+   */
+  private TeamInfo randomTeam(long currTime) {
+    int slot = random.nextInt(liveTeams.size());
+    TeamInfo team = liveTeams.get(slot);
+    // If the selected team is expired, replace it and return the new team.
+    if ((team.getEndTimeInMillis() < currTime) || team.numMembers() == 0) {
+      TeamInfo newTeam = newTeam(currTime);
+      liveTeams.set(slot, newTeam);
+      System.out.println("\nteam " + team + " is too old; replacing.");
+      System.out.println("start time: " + team.getStartTimeInMillis()
+      + ", end time: " + team.getEndTimeInMillis()
+      + ", current time:" + currTime);
+      System.out.println("[-" + team + "]");
+      System.out.println("[+" + newTeam + "]");
+      return newTeam;
+    } else {
+      return team;
+    }
+  }
+
+  /**
+   * Create a team from this generator's slice. Possibly add a robot to the team.
+   */
+  private TeamInfo newTeam(long currTime) {
+    String teamName = TeamDictionary.nameOf(slice + numSlices * random.nextInt(numTeamsInSlice));
+    String robot = null;
+    // Decide if we want to add a robot to the team.
+    if (random.nextInt(ROBOT_PROBABILITY) == 0) {
+      robot = "Robot-" + random.nextInt(NUM_ROBOTS);
+    }
+    // Create the new team.
+    return new TeamInfo(teamName, currTime, robot, random);
+  }
+
+  /**
+   * Generates {@code numEvents} events from live users, each timestamped {@code delayInMillis}
+   * before the time on the generator's clock.
+   */
+  EventBatch generateBatch(int numEvents, int delayInMillis) {
+    EventBatch batch = new EventBatch(numEvents, delayInMillis);
+    for (int i = 0; i < numEvents; i++) {
+      addEvent(batch, clock.millis(), delayInMillis);
+    }
+    return batch;
+  }
+
+  /**
+   * Generates {@code numEvents} events at simulated times spread evenly over
+   * {@code [fromMillis, toMillis)}, so that data can be generated much faster than real time.
+   */
+  EventBatch generateBatch(int numEvents, long fromMillis, long toMillis) {
+    EventBatch batch = new EventBatch(numEvents, 0);
+    for (int i = 0; i < numEvents; i++) {
+      addEvent(batch, fromMillis + (toMillis - fromMillis) * i / numEvents, 0);
+    }
+    return batch;
+  }
+
+  /** Generate a user gaming event for a random team, and add it to the batch. */
+  private void addEvent(EventBatch batch, long currTime, int delayInMillis) {
+    TeamInfo team = randomTeam(currTime);
+    byte[] user;
+
+    // If the team has an associated robot team member...
+    if (team.robotBytes != null) {
+      // Then use that robot for the message with some probability.
+      // Set this probability to higher than that used to select any of the 'regular' team
+      // members, so that if there is a robot on the team, it has a higher click rate.
+      if (random.nextInt(team.numMembers() / 2) == 0) {
+        user = team.robotBytes;
+      } else {
+        user = team.getRandomUser(random);
+      }
+    } else { // No robot.
+      user = team.getRandomUser(random);
+    }
+    int score = random.nextInt(MAX_SCORE);
+    long eventTime = (currTime - delayInMillis) / 1000 * 1000;
+    // Randomly introduce occasional parse errors. You can see a custom counter tracking the number
+    // of such errors in the Dataflow Monitoring UI, as the example pipeline runs.
+    if (random.nextInt(PARSE_ERROR_RATE) == 0) {
+      System.out.println("Introducing a parse error.");
+      encoder.encodeCorrupt(batch, eventTime, currTime);
+      user = null;
+    } else {
+      encoder.encode(batch, user, team.teamNameBytes, score, eventTime, currTime);
+    }
+    batch.endEvent(team, user, score, eventTime);
+  }
+}
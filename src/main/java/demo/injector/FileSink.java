@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the Injector's events to files through one long-lived channel and a large direct buffer,
+ * rather than reopening the file for every batch.
+ *
+ * <p>Without rolling, events are appended to the one file. With rolling, they go to numbered files
+ * {@code <fileName>-00000}, {@code <fileName>-00001} and so on, and a new file is started once the
+ * current one holds the given number of bytes, before compression, or has been open for the given
+ * time. Files only roll between batches. Each run numbers its files from zero again, so a rolled
+ * file left by an earlier run is truncated rather than appended to, and holds only this run's
+ * events. Compressed files get a {@code .gz} suffix.
+ *
+ * <p>Buffered events reach the file at least once a second, so it can be followed as it grows.
+ * Compressed files are sync-flushed then, so the events so far can be decompressed too.
+ *
+ * <p>Once closed, the sink drops any further batches rather than reopening the file, so a late
+ * write cannot leave an unfinished gzip member or a spurious new file behind.
+ */
+class FileSink implements Closeable {
+
+  /** How the files are compressed. */
+  enum Compression {
+    NONE,
+    GZIP
+  }
+
+  private static final int BUFFER_SIZE = 1 << 22;
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+  private final String fileName;
+  private final long rollBytes;
+  private final long rollMillis;
+  private final Compression compression;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private WritableByteChannel out;
+  // Set for compressed files, to push what the deflater holds out to the file.
+  private GZIPOutputStream gzip;
+  private int fileIndex;
+  private long bytesInFile;
+  private long openedMillis;
+  private long flushedMillis;
+  private boolean closed;
+
+  /**
+   * Creates a sink for {@code fileName} that rolls after {@code rollBytes} bytes or
+   * {@code rollMillis} milliseconds; zero disables either limit.
+   */
+  FileSink(String fileName, long rollBytes, long rollMillis, Compression compression) {
+    this.fileName = fileName;
+    this.rollBytes = rollBytes;
+    this.rollMillis = rollMillis;
+    this.compression = compression;
+  }
+
+  private boolean rolling() {
+    return rollBytes > 0 || rollMillis > 0;
+  }
+
+  /** Appends the lines of {@code batch}, one per line, unless the sink is closed. */
+  synchronized void write(EventBatch batch) throws IOException {
+    if (closed) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (out == null) {
+      open(now);
+    } else if ((rollBytes > 0 && bytesInFile >= rollBytes)
+        || (rollMillis > 0 && now - openedMillis >= rollMillis)) {
+      closeFile();
+      open(now);
+    }
+
+    ByteBuffer lines = batch.lines();
+    bytesInFile += lines.remaining();
+    put(lines);
+
+    if (now - flushedMillis >= FLUSH_INTERVAL_MILLIS) {
+      flushBuffer();
+      if (gzip != null) {
+        gzip.flush();
+      }
+      flushedMillis = now;
+    }
+  }
+
+  private void put(ByteBuffer bytes) throws IOException {
+    if (bytes.remaining() > buffer.remaining()) {
+      flushBuffer();
+      if (bytes.remaining() > buffer.capacity()) {
+        writeFully(bytes);
+        return;
+      }
+    }
+    buffer.put(bytes);
+  }
+
+  private void flushBuffer() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      out.write(bytes);
+    }
+  }
+
+  private void open(long now) throws IOException {
+    String name = rolling() ? String.format("%s-%05d", fileName, fileIndex++) : fileName;
+    if (compression == Compression.GZIP) {
+      name += ".gz";
+    }
+    FileChannel file = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        rolling() ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+    if (compression == Compression.GZIP) {
+      // Appending to an existing file adds a gzip member, which gunzip reads as a continuation.
+      gzip = new GZIPOutputStream(Channels.newOutputStream(file), 1 << 16, true);
+      out = Channels.newChannel(gzip);
+    } else {
+      out = file;
+    }
+    bytesInFile = 0;
+    openedMillis = now;
+    flushedMillis = now;
+    System.out.println("Writing to file: " + name);
+  }
+
+  private void closeFile() throws IOException {
+    flushBuffer();
+    out.close();
+    out = null;
+    gzip = null;
+  }
+
+  /** Writes out everything buffered and closes the current file. */
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    if (out != null) {
+      closeFile();
+    }
+  }
+}
@@ -15,32 +15,34 @@
  */
 package demo.injector;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.google.api.services.pubsub.Pubsub;
-import com.google.api.services.pubsub.model.PublishRequest;
-import com.google.api.services.pubsub.model.PubsubMessage;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.RateLimiter;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 import java.util.Random;
-import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.beam.sdk.options.Default;
 import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.joda.time.DateTimeZone;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.joda.time.Instant;
+
+import demo.EventFormat;
 
 /**
  * This is a generator that simulates usage data from a mobile game, and either publishes the data
@@ -84,8 +86,12 @@ import org.joda.time.format.DateTimeFormatter;
  */
 class Injector {
   private static Pubsub pubsub;
+  private static PubsubPublisher pubsubPublisher;
   private static Properties kafkaProps;
-  private static Random random = new Random();
+  // One producer for the life of the injector. KafkaProducer is thread safe, and keeping it open
+  // keeps its connections, metadata and batches warm across publishing rounds.
+  private static Producer<byte[], byte[]> producer;
+  private static KafkaSender kafkaSender;
   private static String topic;
   private static Options options;
   private static final String TIMESTAMP_ATTRIBUTE = "timestamp_ms";
@@ -95,44 +101,51 @@ class Injector {
   private static final int QPS_RANGE = 200;
   // How long to sleep, in ms, between creation of the threads that make API requests to PubSub.
   private static final int THREAD_SLEEP_MS = 500;
+  // Threads publishing to Kafka, and how many publishing tasks may wait for them. Once the queue
+  // is full the main loop publishes itself, which holds back generation until the sink catches
+  // up. PubSub has its own threads in a PubsubPublisher.
+  private static final int PUBLISHER_THREADS = 4;
+  private static final int MAX_QUEUED_PUBLISHES = 16;
+  // With --targetQps, batches are sized to about this much time at the current rate, so the
+  // rate is paced in small steps, but never exceed the largest PubSub publish request.
+  private static final int PACED_BATCH_MILLIS = 10;
+  private static final int MAX_PACED_BATCH = 1000;
+  private static final int RATE_REPORT_MILLIS = 10 * 1000;
 
-  // Lists used to generate random team names.
-  private static final ArrayList<String> COLORS =
-      new ArrayList<String>(Arrays.asList(
-          "Magenta", "AliceBlue", "Almond", "Amaranth", "Amber",
-          "Amethyst", "AndroidGreen", "AntiqueBrass", "Fuchsia", "Ruby", "AppleGreen",
-          "Apricot", "Aqua", "ArmyGreen", "Asparagus", "Auburn", "Azure", "Banana",
-          "Beige", "Bisque", "BarnRed", "BattleshipGrey"));
-
-  private static final ArrayList<String> ANIMALS =
-      new ArrayList<String>(Arrays.asList(
-          "Echidna", "Koala", "Wombat", "Marmot", "Quokka", "Kangaroo", "Dingo", "Numbat", "Emu",
-          "Wallaby", "CaneToad", "Bilby", "Possum", "Cassowary", "Kookaburra", "Platypus",
-          "Bandicoot", "Cockatoo", "Antechinus"));
-
-  // The list of live teams.
-  private static ArrayList<TeamInfo> liveTeams = new ArrayList<TeamInfo>();
-
-  private static DateTimeFormatter fmt =
-      DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS")
-      .withZone(DateTimeZone.forTimeZone(TimeZone.getTimeZone("PST")));
-
-
-  // The total number of robots in the system.
-  private static final int NUM_ROBOTS = 20;
-  // Determines the chance that a team will have a robot team member.
-  private static final int ROBOT_PROBABILITY = 3;
-  private static final int NUM_LIVE_TEAMS = 15;
-  private static final int BASE_MEMBERS_PER_TEAM = 5;
-  private static final int MEMBERS_PER_TEAM = 15;
-  private static final int MAX_SCORE = 20;
   private static final int LATE_DATA_RATE = 5 * 60 * 2;       // Every 10 minutes
   private static final int BASE_DELAY_IN_MILLIS = 5 * 60 * 1000;  // 5-10 minute delay
   private static final int FUZZY_DELAY_IN_MILLIS = 5 * 60 * 1000;
 
-  // The minimum time a 'team' can live.
-  private static final int BASE_TEAM_EXPIRATION_TIME_IN_MINS = 20;
-  private static final int TEAM_EXPIRATION_TIME_IN_MINS = 20;
+  private static boolean writeToFile = true;
+  private static boolean writeToPubsub = true;
+  private static boolean writeToKafka = true;
+
+  // Set with --targetQps, and shared by all generator threads.
+  private static QpsProfile profile;
+  private static RateLimiter rateLimiter;
+  private static final AtomicLong publishedMessages = new AtomicLong();
+  private static FileSink fileSink;
+  // Set when the injector is stopped, so that the generator loops exit before the sinks close.
+  private static volatile boolean stopping;
+  private static final List<Thread> generatorThreads = new CopyOnWriteArrayList<>();
+  private static final long STOP_TIMEOUT_MILLIS = 10 * 1000;
+  // The single generator's publish pool, if any, drained before the sinks close.
+  private static volatile ThreadPoolExecutor publishers;
+  // The time events happen at: the wall clock, or simulated time with --simulatedSpeedup.
+  private static Clock clock = Clock.SYSTEM;
+  // With --shardCount, only the first shard adds late data, so there is as much of it in total
+  // as from a single injector.
+  private static boolean addLateData = true;
+
+  /** What Kafka records are keyed by, and so which events share a partition. */
+  enum KafkaKey {
+    /** No key: the producer spreads the events over all partitions. */
+    NONE,
+    /** The team: each team's events go to one partition, in order. */
+    TEAM,
+    /** The user: each user's events go to one partition, in order. */
+    USER
+  }
 
   interface Options extends PipelineOptions {
     @Description("Kafka Bootstrap Server")
@@ -143,6 +156,61 @@ class Injector {
     String getKafkaTopic();
     void setKafkaTopic(String value);
 
+    @Description("How events are encoded in Kafka records: CSV or BINARY")
+    @Default.Enum("CSV")
+    EventFormat getKafkaFormat();
+    void setKafkaFormat(EventFormat value);
+
+    @Description("What Kafka records are keyed and partitioned by: NONE, TEAM or USER")
+    @Default.Enum("TEAM")
+    KafkaKey getKafkaKey();
+    void setKafkaKey(KafkaKey value);
+
+    @Description("Fraction of Kafka records to send out of order, by up to --outOfOrderMaxSeconds")
+    @Default.Double(0)
+    double getOutOfOrderFraction();
+    void setOutOfOrderFraction(double value);
+
+    @Description("Longest an out of order Kafka record is held back, in seconds of event time")
+    @Default.Integer(60)
+    int getOutOfOrderMaxSeconds();
+    void setOutOfOrderMaxSeconds(int value);
+
+    @Description("Fraction of Kafka records to send late, by --lateMinSeconds to --lateMaxSeconds")
+    @Default.Double(0)
+    double getLateFraction();
+    void setLateFraction(double value);
+
+    @Description("Shortest a late Kafka record is held back, in seconds of event time")
+    @Default.Integer(5 * 60)
+    int getLateMinSeconds();
+    void setLateMinSeconds(int value);
+
+    @Description("Longest a late Kafka record is held back, in seconds of event time")
+    @Default.Integer(10 * 60)
+    int getLateMaxSeconds();
+    void setLateMaxSeconds(int value);
+
+    @Description("Most Kafka records held back at once; beyond that they are sent without delay")
+    @Default.Integer(500 * 1000)
+    int getKafkaMaxHeldRecords();
+    void setKafkaMaxHeldRecords(int value);
+
+    @Description("Kafka producer compression: none, gzip, snappy or lz4")
+    @Default.String("none")
+    String getKafkaCompression();
+    void setKafkaCompression(String value);
+
+    @Description("Kafka producer batch.size, in bytes per partition")
+    @Default.Integer(16384)
+    int getKafkaBatchSize();
+    void setKafkaBatchSize(int value);
+
+    @Description("Kafka producer linger.ms, how long to wait to fill a batch")
+    @Default.Integer(1)
+    int getKafkaLingerMs();
+    void setKafkaLingerMs(int value);
+
     @Description("GCP Project")
     String getGcpProject();
     void setGcpProject(String value);
@@ -151,254 +219,209 @@ class Injector {
     String getPubsubTopic();
     void setPubsubTopic(String value);
 
-    @Description("File name")
-    String getFileName();
-    void setFileName(String value);
-  }
+    @Description("Pubsub endpoint to publish to without credentials, such as the emulator at "
+        + "http://localhost:8085/; defaults to $PUBSUB_EMULATOR_HOST if set")
+    String getPubsubRootUrl();
+    void setPubsubRootUrl(String value);
 
+    @Description("Pubsub publish requests to keep in flight at once")
+    @Default.Integer(8)
+    int getPubsubPublishThreads();
+    void setPubsubPublishThreads(int value);
 
-  /**
-   * A class for holding team info: the name of the team, when it started,
-   * and the current team members. Teams may but need not include one robot team member.
-   */
-  private static class TeamInfo {
-    String teamName;
-    long startTimeInMillis;
-    int expirationPeriod;
-    // The team might but need not include 1 robot. Will be non-null if so.
-    String robot;
-    int numMembers;
-
-    private TeamInfo(String teamName, long startTimeInMillis, String robot) {
-      this.teamName = teamName;
-      this.startTimeInMillis = startTimeInMillis;
-      // How long until this team is dissolved.
-      this.expirationPeriod = random.nextInt(TEAM_EXPIRATION_TIME_IN_MINS)
-          + BASE_TEAM_EXPIRATION_TIME_IN_MINS;
-      this.robot = robot;
-      // Determine the number of team members.
-      numMembers = random.nextInt(MEMBERS_PER_TEAM) + BASE_MEMBERS_PER_TEAM;
-    }
+    @Description("Most bytes of Pubsub publish requests to have in flight before waiting")
+    @Default.Integer(64 << 20)
+    int getPubsubMaxOutstandingBytes();
+    void setPubsubMaxOutstandingBytes(int value);
 
-    String getTeamName() {
-      return teamName;
-    }
-    String getRobot() {
-      return robot;
-    }
-
-    long getStartTimeInMillis() {
-      return startTimeInMillis;
-    }
-    long getEndTimeInMillis() {
-      return startTimeInMillis + (expirationPeriod * 60 * 1000);
-    }
-    String getRandomUser() {
-      int userNum = random.nextInt(numMembers);
-      return "user" + userNum + "_" + teamName;
-    }
-
-    int numMembers() {
-      return numMembers;
-    }
-
-    @Override
-    public String toString() {
-      return "(" + teamName + ", num members: " + numMembers() + ", starting at: "
-          + startTimeInMillis + ", expires in: " + expirationPeriod + ", robot: " + robot + ")";
-    }
-  }
-
-  /** Utility to grab a random element from an array of Strings. */
-  private static String randomElement(ArrayList<String> list) {
-    int index = random.nextInt(list.size());
-    return list.get(index);
-  }
+    @Description("File name")
+    String getFileName();
+    void setFileName(String value);
 
-  /**
-   * Get and return a random team. If the selected team is too old w.r.t its expiration, remove
-   * it, replacing it with a new team.
-   */
-  private static TeamInfo randomTeam(ArrayList<TeamInfo> list) {
-    int index = random.nextInt(list.size());
-    TeamInfo team = list.get(index);
-    // If the selected team is expired, remove it and return a new team.
-    long currTime = System.currentTimeMillis();
-    if ((team.getEndTimeInMillis() < currTime) || team.numMembers() == 0) {
-      System.out.println("\nteam " + team + " is too old; replacing.");
-      System.out.println("start time: " + team.getStartTimeInMillis()
-      + ", end time: " + team.getEndTimeInMillis()
-      + ", current time:" + currTime);
-      removeTeam(index);
-      // Add a new team in its stead.
-      return (addLiveTeam());
-    } else {
-      return team;
-    }
+    @Description("Start a new numbered file after this many bytes; 0 never rolls by size")
+    @Default.Long(0)
+    long getFileRollBytes();
+    void setFileRollBytes(long value);
+
+    @Description("Start a new numbered file after this many seconds; 0 never rolls by time")
+    @Default.Integer(0)
+    int getFileRollSeconds();
+    void setFileRollSeconds(int value);
+
+    @Description("Compression for --fileName: NONE or GZIP")
+    @Default.Enum("NONE")
+    FileSink.Compression getFileCompression();
+    void setFileCompression(FileSink.Compression value);
+
+    @Description("Events per second to hold; 0 keeps the default of 1600-2000 per second")
+    @Default.Integer(0)
+    int getTargetQps();
+    void setTargetQps(int value);
+
+    @Description("Seconds over which to ramp up linearly to --targetQps")
+    @Default.Integer(0)
+    int getRampSeconds();
+    void setRampSeconds(int value);
+
+    @Description("Events per second to burst to for --burstSeconds every --burstEverySeconds")
+    @Default.Integer(0)
+    int getBurstQps();
+    void setBurstQps(int value);
+
+    @Description("Seconds between the starts of bursts to --burstQps")
+    @Default.Integer(0)
+    int getBurstEverySeconds();
+    void setBurstEverySeconds(int value);
+
+    @Description("Length of each burst to --burstQps, in seconds")
+    @Default.Integer(0)
+    int getBurstSeconds();
+    void setBurstSeconds(int value);
+
+    @Description("Threads generating and publishing events, each for its own slice of the teams; "
+        + "at most 15 over all --shardCount injectors, one per live team")
+    @Default.Integer(1)
+    int getGeneratorThreads();
+    void setGeneratorThreads(int value);
+
+    @Description("Generate this many events into sharded files under --fileName, then exit")
+    @Default.Long(0)
+    long getTotalEvents();
+    void setTotalEvents(long value);
+
+    @Description("Generate about this many bytes into sharded files under --fileName, then exit")
+    @Default.Long(0)
+    long getTotalBytes();
+    void setTotalBytes(long value);
+
+    @Description("Number of files for --totalEvents or --totalBytes; 0 for one per processor")
+    @Default.Integer(0)
+    int getNumShards();
+    void setNumShards(int value);
+
+    @Description("Simulated time of the first event for --totalEvents, --totalBytes or "
+        + "--simulatedSpeedup")
+    @Default.String("2015-11-16T00:00:00Z")
+    String getSimulatedStart();
+    void setSimulatedStart(String value);
+
+    @Description("Hours of simulated time to spread --totalEvents or --totalBytes over")
+    @Default.Integer(24)
+    int getSimulatedHours();
+    void setSimulatedHours(int value);
+
+    @Description("Run event time from --simulatedStart this many times faster than the wall "
+        + "clock; 0 uses the wall clock. Rates stay in events per second of wall time.")
+    @Default.Double(0)
+    double getSimulatedSpeedup();
+    void setSimulatedSpeedup(double value);
+
+    @Description("Seed for reproducible events; unseeded by default")
+    Long getSeed();
+    void setSeed(Long value);
+
+    @Description("Which of --shardCount injectors this is, from 0")
+    @Default.Integer(0)
+    int getShardIndex();
+    void setShardIndex(int value);
+
+    @Description("Number of injectors splitting the events between them")
+    @Default.Integer(1)
+    int getShardCount();
+    void setShardCount(int value);
   }
 
-  /**
-   * Create and add a team. Possibly add a robot to the team.
-   */
-  private static synchronized TeamInfo addLiveTeam() {
-    String teamName = randomElement(COLORS) + randomElement(ANIMALS);
-    String robot = null;
-    // Decide if we want to add a robot to the team.
-    if (random.nextInt(ROBOT_PROBABILITY) == 0) {
-      robot = "Robot-" + random.nextInt(NUM_ROBOTS);
-    }
-    // Create the new team.
-    TeamInfo newTeam = new TeamInfo(teamName, System.currentTimeMillis(), robot);
-    liveTeams.add(newTeam);
-    System.out.println("[+" + newTeam + "]");
-    return newTeam;
-  }
 
   /**
-   * Remove a specific team.
+   * Publish a batch of generated events to a PubSub topic. Requests go out in the background,
+   * and this only waits when too many of them are outstanding.
    */
-  private static synchronized void removeTeam(int teamIndex) {
-    TeamInfo removedTeam = liveTeams.remove(teamIndex);
-    System.out.println("[-" + removedTeam + "]");
+  public static void publishDataToPubSub(EventBatch batch) throws InterruptedException {
+    pubsubPublisher.publish(batch);
   }
 
-  /** Generate a user gaming event. */
-  private static String generateEvent(Long currTime, int delayInMillis) {
-    TeamInfo team = randomTeam(liveTeams);
-    String teamName = team.getTeamName();
-    String user;
-    final int parseErrorRate = 900000;
-
-    String robot = team.getRobot();
-    // If the team has an associated robot team member...
-    if (robot != null) {
-      // Then use that robot for the message with some probability.
-      // Set this probability to higher than that used to select any of the 'regular' team
-      // members, so that if there is a robot on the team, it has a higher click rate.
-      if (random.nextInt(team.numMembers() / 2) == 0) {
-        user = robot;
-      } else {
-        user = team.getRandomUser();
+  /** Reports records the Kafka producer failed to send. */
+  private static final Callback KAFKA_SEND_CALLBACK = new Callback() {
+    @Override
+    public void onCompletion(RecordMetadata metadata, Exception exception) {
+      if (exception != null) {
+        System.err.println("Failed to send to kafka: " + exception);
       }
-    } else { // No robot.
-      user = team.getRandomUser();
     }
-    String event = user + "," + teamName + "," + random.nextInt(MAX_SCORE);
-    // Randomly introduce occasional parse errors. You can see a custom counter tracking the number
-    // of such errors in the Dataflow Monitoring UI, as the example pipeline runs.
-    if (random.nextInt(parseErrorRate) == 0) {
-      System.out.println("Introducing a parse error.");
-      event = "THIS LINE REPRESENTS CORRUPT DATA AND WILL CAUSE A PARSE ERROR";
-    }
-    return addTimeInfoToEvent(event, currTime, delayInMillis);
-  }
-
-  /**
-   * Add time info to a generated gaming event.
-   */
-  private static String addTimeInfoToEvent(String message, Long currTime, int delayInMillis) {
-    String eventTimeString =
-        Long.toString((currTime - delayInMillis) / 1000 * 1000);
-    // Add a (redundant) 'human-readable' date string to make the data semantics more clear.
-    String dateString = fmt.print(currTime);
-    message = message + "," + eventTimeString + "," + dateString;
-    return message;
-  }
+  };
 
   /**
-   * Publish 'numMessages' arbitrary events from live users with the provided delay, to a
-   * PubSub topic.
+   * Publish a batch of generated events to a Kafka topic. Sends are asynchronous; the shared
+   * producer batches them in the background. The records are already encoded, so the producer
+   * only copies their bytes. Keyed records keep each team's or user's events together on one
+   * partition, so consumers can combine them before shuffling. Each record is timestamped with
+   * its event time, so late data is late to Kafka consumers too. {@code holdRandom} draws which
+   * records are held back, and may be null if none are.
    */
-  public static void publishDataToPubSub(int numMessages, int delayInMillis)
-      throws IOException {
-    List<PubsubMessage> pubsubMessages = new ArrayList<>();
-
-    for (int i = 0; i < Math.max(1, numMessages); i++) {
-      Long currTime = System.currentTimeMillis();
-      String message = generateEvent(currTime, delayInMillis);
-      PubsubMessage pubsubMessage = new PubsubMessage()
-          .encodeData(message.getBytes("UTF-8"));
-      pubsubMessage.setAttributes(
-          ImmutableMap.of(TIMESTAMP_ATTRIBUTE,
-              Long.toString((currTime - delayInMillis) / 1000 * 1000)));
-      if (delayInMillis != 0) {
-        System.out.println(pubsubMessage.getAttributes());
-        System.out.println("late data for: " + message);
-      }
-      pubsubMessages.add(pubsubMessage);
+  public static void publishDataToKafka(EventBatch batch, Random holdRandom) throws IOException {
+    boolean binary = options.getKafkaFormat() == EventFormat.BINARY;
+    KafkaKey keyBy = options.getKafkaKey();
+    for (int i = 0; i < batch.size(); i++) {
+      byte[] message = binary ? batch.binaryRecord(i) : batch.lineBytes(i);
+      byte[] key = keyBy == KafkaKey.TEAM ? batch.teamBytes(i)
+          : keyBy == KafkaKey.USER ? batch.userBytes(i) : null;
+      kafkaSender.send(new ProducerRecord<>(
+          options.getKafkaTopic(), null, batch.eventTime(i), key, message), holdRandom);
     }
-
-    PublishRequest publishRequest = new PublishRequest();
-    publishRequest.setMessages(pubsubMessages);
-    pubsub.projects().topics().publish(topic, publishRequest).execute();
-  }
-
-  /**
-   * Publish 'numMessages' arbitrary events from live users with the provided delay, to a
-   * Kafka topic.
-   */
-  public static void publishDataToKafka(int numMessages, int delayInMillis)
-      throws IOException {
-
-    Producer<String, String> producer = new KafkaProducer<>(kafkaProps);
-
-    for (int i = 0; i < Math.max(1, numMessages); i++) {
-      Long currTime = System.currentTimeMillis();
-      String message = generateEvent(currTime, delayInMillis);
-      producer.send(new ProducerRecord<String, String>("game", null, message)); //TODO(fjp): Generalize
-      // TODO(fjp): How do we get late data working?
-      // if (delayInMillis != 0) {
-      //   System.out.println(pubsubMessage.getAttributes());
-      //   System.out.println("late data for: " + message);
-      // }
-      // pubsubMessages.add(pubsubMessage);
-    }
-
-    producer.close();
   }
 
   /**
    * Publish generated events to a file.
    */
-  public static void publishDataToFile(String fileName, int numMessages, int delayInMillis)
-      throws IOException {
-    PrintWriter out = new PrintWriter(new OutputStreamWriter(
-        new BufferedOutputStream(new FileOutputStream(fileName, true)), "UTF-8"));
-
-    try {
-      for (int i = 0; i < Math.max(1, numMessages); i++) {
-        Long currTime = System.currentTimeMillis();
-        String message = generateEvent(currTime, delayInMillis);
-        out.println(message);
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      if (out != null) {
-        out.flush();
-        out.close();
-      }
-    }
+  public static void publishDataToFile(EventBatch batch) throws IOException {
+    fileSink.write(batch);
   }
 
-
-  public static void main(String[] args) throws IOException, InterruptedException {
+  public static void main(String[] args) throws Exception {
     options = PipelineOptionsFactory.fromArgs(args).withValidation().as(Options.class);
+    checkArgument(options.getShardIndex() >= 0 && options.getShardIndex() < options.getShardCount(),
+        "No shard index %s of %s", options.getShardIndex(), options.getShardCount());
 
-    boolean writeToFile = true;
-    boolean writeToPubsub = true;
-    boolean writeToKafka = true;
+    if (options.getTotalEvents() > 0 || options.getTotalBytes() > 0) {
+      generateBulkData();
+      return;
+    }
+    // Every generator of every shard owns a disjoint slice of the live teams.
+    checkArgument(options.getGeneratorThreads() * options.getShardCount()
+        <= EventGenerator.NUM_LIVE_TEAMS,
+        "%s generator threads in each of %s injectors are more than the %s live teams",
+        options.getGeneratorThreads(), options.getShardCount(), EventGenerator.NUM_LIVE_TEAMS);
 
     if (options.getGcpProject() == null || options.getPubsubTopic() == null) {
       writeToPubsub = false;
       System.out.println("Not writing to pubsub. Missing values for --gcpProject and/or --pubsubTopic");
     } else {
-      // Create the PubSub client.
-      pubsub = InjectorUtils.getClient();
+      // Create the PubSub client, for the emulator if there is one.
+      String rootUrl = options.getPubsubRootUrl();
+      if (rootUrl == null && System.getenv("PUBSUB_EMULATOR_HOST") != null) {
+        rootUrl = "http://" + System.getenv("PUBSUB_EMULATOR_HOST") + "/";
+      }
+      pubsub = rootUrl == null
+          ? InjectorUtils.getClient() : InjectorUtils.getEmulatorClient(rootUrl);
       // Create the PubSub topic as necessary.
       topic = InjectorUtils.getFullyQualifiedTopicName(options.getGcpProject(), options.getPubsubTopic());
       InjectorUtils.createTopic(pubsub, topic);
-      System.out.println("Writing to pubusb topic: " + topic);
+      pubsubPublisher = new PubsubPublisher(pubsub, topic, TIMESTAMP_ATTRIBUTE,
+          options.getPubsubPublishThreads(), options.getPubsubMaxOutstandingBytes());
+      // Finish the requests in flight when stopped.
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          stopGenerators();
+          try {
+            pubsubPublisher.close();
+          } catch (IOException e) {
+            System.err.println(e);
+          }
+        }
+      });
+      System.out.println("Writing to pubusb topic: " + topic
+          + (rootUrl == null ? "" : " at " + rootUrl));
     }
 
     if (options.getKafkaBootstrapServer() == null || options.getKafkaTopic() == null) {
@@ -409,81 +432,281 @@ class Injector {
       kafkaProps.put("bootstrap.servers", options.getKafkaBootstrapServer());
       kafkaProps.put("acks", "all");
       kafkaProps.put("retries", 0);
-      kafkaProps.put("batch.size", 16384);
-      kafkaProps.put("linger.ms", 1);
+      kafkaProps.put("batch.size", options.getKafkaBatchSize());
+      kafkaProps.put("linger.ms", options.getKafkaLingerMs());
+      kafkaProps.put("compression.type", options.getKafkaCompression());
       kafkaProps.put("buffer.memory", 33554432);
-      kafkaProps.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-      kafkaProps.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-
-      System.out.println("Writing to kafka topic: " + options.getKafkaTopic());
+      kafkaProps.put("key.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+      kafkaProps.put("value.serializer",
+          "org.apache.kafka.common.serialization.ByteArraySerializer");
+      producer = new KafkaProducer<>(kafkaProps);
+      // Out of order and late records are held back in event time, which may run faster.
+      kafkaSender = new KafkaSender(producer, KAFKA_SEND_CALLBACK,
+          options.getSimulatedSpeedup() > 0 ? options.getSimulatedSpeedup() : 1,
+          options.getKafkaMaxHeldRecords())
+          .withOutOfOrder(options.getOutOfOrderFraction(),
+              options.getOutOfOrderMaxSeconds() * 1000L)
+          .withLate(options.getLateFraction(), options.getLateMinSeconds() * 1000L,
+              options.getLateMaxSeconds() * 1000L);
+      // Deliver whatever is still held or batched when the injector is stopped.
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          stopGenerators();
+          kafkaSender.close();
+          producer.flush();
+          producer.close();
+        }
+      });
+
+      System.out.println("Writing to kafka topic: " + options.getKafkaTopic() + " as "
+          + options.getKafkaFormat() + " keyed by " + options.getKafkaKey() + ", compression "
+          + options.getKafkaCompression());
     }
 
     if (options.getFileName() == null) {
       writeToFile = false;
       System.out.println("Not writing to file. Missing value for --fileName");
     } else {
-      System.out.println("Writing to file: " + options.getFileName());
+      fileSink = new FileSink(options.getFileName(), options.getFileRollBytes(),
+          options.getFileRollSeconds() * 1000L, options.getFileCompression());
+      // Write out what is still buffered, and finish compressed files, when stopped.
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          stopGenerators();
+          try {
+            fileSink.close();
+          } catch (IOException e) {
+            System.err.println(e);
+          }
+        }
+      });
     }
 
-    System.out.println("Starting Injector");
+    if (options.getSimulatedSpeedup() > 0) {
+      clock = Clock.simulated(Instant.parse(options.getSimulatedStart()).getMillis(),
+          options.getSimulatedSpeedup());
+    }
+    System.out.println("Starting Injector on the " + clock);
+
+    // With a target QPS, a token bucket paces the batches, so the rate holds however long each
+    // publish takes. Otherwise batches of MIN_QPS to MIN_QPS + QPS_RANGE go out every
+    // THREAD_SLEEP_MS.
+    // The rates are totals across all the shards.
+    int shardCount = options.getShardCount();
+    if (options.getTargetQps() > 0) {
+      profile = new QpsProfile((double) options.getTargetQps() / shardCount,
+          options.getRampSeconds() * 1000L, (double) options.getBurstQps() / shardCount,
+          options.getBurstEverySeconds() * 1000L, options.getBurstSeconds() * 1000L);
+      rateLimiter = RateLimiter.create(profile.qpsAt(0));
+      System.out.println("Publishing at " + profile);
+    }
+
+    // Every generator of every shard owns its own slice of the teams.
+    addLateData = options.getShardIndex() == 0;
+    final int numGenerators = options.getGeneratorThreads();
+    final int numSlices = numGenerators * shardCount;
+    int firstSlice = options.getShardIndex() * numGenerators;
+    if (numGenerators <= 1) {
+      publishers = new ThreadPoolExecutor(
+          PUBLISHER_THREADS, PUBLISHER_THREADS, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(MAX_QUEUED_PUBLISHES),
+          new ThreadPoolExecutor.CallerRunsPolicy());
+      generatorThreads.add(Thread.currentThread());
+      publishLoop(newGenerator(firstSlice, numSlices), newRandom(numSlices + firstSlice),
+          numSlices, true, publishers);
+      return;
+    }
 
-    // Start off with some random live teams.
-    while (liveTeams.size() < NUM_LIVE_TEAMS) {
-      addLiveTeam();
+    // Each generator thread owns a slice of the teams and publishes its own batches, so the
+    // threads share nothing but the sinks and the rate limiter.
+    System.out.println("Generating on " + numGenerators + " threads");
+    List<Thread> generators = new ArrayList<>();
+    for (int i = 0; i < numGenerators; i++) {
+      final EventGenerator generator = newGenerator(firstSlice + i, numSlices);
+      // Past the generators' streams, so the loop's draws do not change the events.
+      final Random loopRandom = newRandom(numSlices + firstSlice + i);
+      final boolean leader = i == 0;
+      Thread thread = new Thread("generator-" + i) {
+        @Override
+        public void run() {
+          try {
+            publishLoop(generator, loopRandom, numSlices, leader, null);
+          } catch (IOException | InterruptedException e) {
+            System.err.println(e);
+          }
+        }
+      };
+      generatorThreads.add(thread);
+      thread.start();
+      generators.add(thread);
+    }
+    for (Thread thread : generators) {
+      thread.join();
     }
+  }
+
+  /**
+   * Stops the generator loops and waits for their last batches to reach the sinks, including
+   * those still queued for the publish pool. Every shutdown hook calls this before closing its
+   * sink, as the hooks run concurrently.
+   */
+  private static void stopGenerators() {
+    stopping = true;
+    try {
+      for (Thread thread : generatorThreads) {
+        thread.join(STOP_TIMEOUT_MILLIS);
+      }
+      ThreadPoolExecutor pool = publishers;
+      if (pool != null) {
+        pool.shutdown();
+        pool.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Creates the generator for {@code slice} of {@code numSlices}, seeded if --seed is given. */
+  private static EventGenerator newGenerator(int slice, int numSlices) {
+    return new EventGenerator(slice, numSlices, clock, newRandom(slice));
+  }
+
+  /** Returns the random numbers for {@code stream}, seeded if --seed is given. */
+  private static Random newRandom(int stream) {
+    return options.getSeed() == null
+        ? new Random() : EventGenerator.seededRandom(options.getSeed(), stream);
+  }
+
+  /** Generates a fixed amount of data into sharded files, in simulated time. */
+  private static void generateBulkData() throws Exception {
+    checkArgument(options.getFileName() != null,
+        "--totalEvents and --totalBytes write files, so they need --fileName");
+    // The default depends on the machine, so split runs must agree on the number of files.
+    checkArgument(options.getShardCount() == 1 || options.getNumShards() > 0,
+        "--shardCount needs --numShards, so that every injector splits the files the same way");
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    int numShards = options.getNumShards() > 0 ? options.getNumShards() : numThreads;
+    long startMillis = Instant.parse(options.getSimulatedStart()).getMillis();
+    long endMillis = startMillis + options.getSimulatedHours() * 3600L * 1000L;
+    BulkGenerator generator = new BulkGenerator(options.getFileName(), numShards, startMillis,
+        endMillis, options.getFileCompression(), options.getSeed());
+    long totalEvents = options.getTotalEvents() > 0
+        ? options.getTotalEvents() : generator.eventsForBytes(options.getTotalBytes());
+    generator.generate(totalEvents, numThreads, options.getShardIndex(), options.getShardCount());
+  }
+
+  /**
+   * Publishes batches from {@code generator} forever, at {@code 1 / numGenerators} of the rate,
+   * counting the generators of every shard. The leader loop adjusts and reports this injector's
+   * rate, and adds the late data for the first shard. Publishes to PubSub
+   * and Kafka go to {@code publishers} if given, and are otherwise made by the calling thread.
+   * The loop's own draws, the batch sizes, late data delays and the seeds for which Kafka records
+   * of each batch are held back, come from {@code loopRandom}, so that a seeded loop repeats
+   * them whatever the other threads do, and whichever thread sends the batch.
+   */
+  private static void publishLoop(EventGenerator generator, Random loopRandom,
+      int numGenerators, boolean leader, ThreadPoolExecutor publishers)
+      throws IOException, InterruptedException {
+    long startMillis = System.currentTimeMillis();
+    long lastReportMillis = startMillis;
+    // Late data is timed on the event clock, so it keeps its spacing in simulated time.
+    long nextLateDataMillis = clock.millis();
 
     // Publish messages at a rate determined by the QPS and Thread sleep settings.
-    for (int i = 0; true; i++) {
-      if (Thread.activeCount() > 10) {
-        System.err.println("I'm falling behind!");
+    while (!stopping) {
+      long now = System.currentTimeMillis();
+      int queued = publishers == null ? 0 : publishers.getQueue().size();
+      // Paced batches are too frequent to report on each, so they report with the rate below.
+      if (queued > 0 && rateLimiter == null) {
+        System.err.println("I'm falling behind! " + queued + " of " + MAX_QUEUED_PUBLISHES
+            + " publishes queued.");
       }
 
       // Decide if this should be a batch of late data.
-      final int numMessages;
-      final int delayInMillis;
-      if (i % LATE_DATA_RATE == 0) {
+      int numMessages;
+      int delayInMillis;
+      boolean lateData = false;
+      if (leader && addLateData) {
+        // Every LATE_DATA_RATE unpaced rounds' worth of event time, however often batches go out.
+        long eventMillis = clock.millis();
+        lateData = eventMillis >= nextLateDataMillis;
+        if (lateData) {
+          nextLateDataMillis = eventMillis + LATE_DATA_RATE * THREAD_SLEEP_MS;
+        }
+      }
+      if (lateData) {
         // Insert delayed data for one user (one message only)
-        delayInMillis = BASE_DELAY_IN_MILLIS + random.nextInt(FUZZY_DELAY_IN_MILLIS);
+        delayInMillis = BASE_DELAY_IN_MILLIS + loopRandom.nextInt(FUZZY_DELAY_IN_MILLIS);
         numMessages = 1;
         System.out.println("DELAY(" + delayInMillis + ", " + numMessages + ")");
+      } else if (rateLimiter == null) {
+        if (leader) {
+          System.out.print(".");
+        }
+        delayInMillis = 0;
+        numMessages = (MIN_QPS + loopRandom.nextInt(QPS_RANGE)) / numGenerators;
       } else {
-        System.out.print(".");
+        double qps = profile.qpsAt(now - startMillis);
+        if (leader && qps != rateLimiter.getRate()) {
+          rateLimiter.setRate(qps);
+        }
         delayInMillis = 0;
-        numMessages = MIN_QPS + random.nextInt(QPS_RANGE);
+        numMessages =
+            (int) Math.max(1, Math.min(MAX_PACED_BATCH, qps * PACED_BATCH_MILLIS / 1000));
+      }
+      if (rateLimiter != null) {
+        rateLimiter.acquire(numMessages);
+        publishedMessages.addAndGet(numMessages);
+        if (leader && now - lastReportMillis >= RATE_REPORT_MILLIS) {
+          System.out.println("Published "
+              + publishedMessages.getAndSet(0) * 1000 / (now - lastReportMillis)
+              + " events/s, target " + rateLimiter.getRate() + ", " + queued + " of "
+              + MAX_QUEUED_PUBLISHES + " publishes queued"
+              + (kafkaSender == null ? "" : ", " + kafkaSender.heldRecords()
+                  + " kafka records held back, " + kafkaSender.notHeldRecords()
+                  + " sent unheld as too many were held")
+              + (pubsubPublisher == null ? "" : ", " + pubsubPublisher.outstandingBytes()
+                  + " bytes outstanding to pubsub") + ".");
+          lastReportMillis = now;
+        }
       }
 
+      // Generate the batch once, and publish the same events to every sink.
+      final EventBatch batch = generator.generateBatch(Math.max(1, numMessages), delayInMillis);
+
       if (writeToFile) { // Won't use threading for the file write.
-        publishDataToFile(options.getFileName(), numMessages, delayInMillis);
+        publishDataToFile(batch);
       }
-      if (writeToPubsub) { // Write to PubSub.
-        // Start a thread to inject some data.
-        new Thread(){
-          @Override
-          public void run() {
-            try {
-              publishDataToPubSub(numMessages, delayInMillis);
-            } catch (IOException e) {
-              System.err.println(e);
-            }
-          }
-        }.start();
+      if (writeToPubsub) { // Write to PubSub, which publishes in the background itself.
+        publishDataToPubSub(batch);
       }
       if (writeToKafka) { // Write to Kafka.
-        // Start a thread to inject some data.
-        new Thread(){
+        final Random holdRandom =
+            kafkaSender.holdsBack() ? new Random(loopRandom.nextLong()) : null;
+        Runnable publish = new Runnable() {
           @Override
           public void run() {
             try {
-              publishDataToKafka(numMessages, delayInMillis);
+              publishDataToKafka(batch, holdRandom);
             } catch (IOException e) {
               System.err.println(e);
             }
           }
-        }.start();
+        };
+        if (publishers != null) {
+          // Hand the publish to the pool, or run it here if the pool is saturated.
+          publishers.execute(publish);
+        } else {
+          publish.run();
+        }
       }
 
-      // Wait before creating another injector thread.
-      Thread.sleep(THREAD_SLEEP_MS);
+      // Wait before publishing the next batch.
+      if (rateLimiter == null) {
+        Thread.sleep(THREAD_SLEEP_MS);
+      }
     }
   }
 }
@@ -71,6 +71,21 @@ class InjectorUtils {
   }
 
 
+  /**
+   * Builds a new Pubsub client for the Pub/Sub emulator or other
+   * endpoint at {@code rootUrl}, e.g. {@code http://localhost:8085/},
+   * sending no credentials, and returns it.
+   */
+  public static Pubsub getEmulatorClient(final String rootUrl) {
+      checkNotNull(rootUrl);
+      return new Pubsub.Builder(Utils.getDefaultTransport(),
+                                Utils.getDefaultJsonFactory(),
+                                new RetryHttpInitializerWrapper(null))
+              .setRootUrl(rootUrl.endsWith("/") ? rootUrl : rootUrl + "/")
+              .setApplicationName(APP_NAME)
+              .build();
+  }
+
   /**
    * Returns the fully qualified topic name for Pub/Sub.
    */
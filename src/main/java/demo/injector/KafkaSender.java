@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Sends the Injector's Kafka records, holding a fraction of them back so that they arrive out of
+ * order, or late enough to miss their window's watermark. Held records wait in a
+ * {@link DelayQueue}, and one thread sends each of them once its delay is up, so they really are
+ * published late, still carrying their event time as the record timestamp.
+ *
+ * <p>Delays are drawn uniformly from their ranges, in event time, with the {@link Random} the
+ * caller passes in. Under a simulated clock they are held for correspondingly less wall time.
+ *
+ * <p>At most a fixed number of records are held at once. Beyond that, records drawn to be held
+ * are sent right away, and counted, rather than growing the queue until the heap runs out.
+ * Records still held when the sender is closed are sent at once, so none are lost.
+ */
+class KafkaSender implements Closeable {
+
+  /** A record waiting to be sent. */
+  private static class HeldRecord implements Delayed {
+    final ProducerRecord<byte[], byte[]> record;
+    final long sendAtNanos;
+
+    HeldRecord(ProducerRecord<byte[], byte[]> record, long sendAtNanos) {
+      this.record = record;
+      this.sendAtNanos = sendAtNanos;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(sendAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(sendAtNanos, ((HeldRecord) other).sendAtNanos);
+    }
+  }
+
+  // How long the sending thread waits for a record before checking whether it is closed.
+  private static final long POLL_MILLIS = 100;
+
+  private final Producer<byte[], byte[]> producer;
+  private final Callback callback;
+  private final double speedup;
+  private final DelayQueue<HeldRecord> held = new DelayQueue<>();
+  // One permit per record that may still be held.
+  private final Semaphore holdPermits;
+  private final AtomicLong notHeld = new AtomicLong();
+
+  private double outOfOrderFraction;
+  private long outOfOrderMaxMillis;
+  private double lateFraction;
+  private long lateMinMillis;
+  private long lateMaxMillis;
+  private volatile Thread sender;
+  private volatile boolean closed;
+
+  /**
+   * Creates a sender for {@code producer}, whose event time runs {@code speedup} times as fast as
+   * the wall clock, holding at most {@code maxHeldRecords} back. It holds nothing back until
+   * configured to.
+   */
+  KafkaSender(Producer<byte[], byte[]> producer, Callback callback, double speedup,
+      int maxHeldRecords) {
+    checkArgument(maxHeldRecords >= 0, "Cannot hold back %s records", maxHeldRecords);
+    this.producer = producer;
+    this.callback = callback;
+    this.speedup = speedup;
+    this.holdPermits = new Semaphore(maxHeldRecords);
+  }
+
+  /** Holds {@code fraction} of the records back by up to {@code maxMillis}, out of order. */
+  KafkaSender withOutOfOrder(double fraction, long maxMillis) {
+    checkArgument(fraction >= 0 && fraction <= 1, "Not a fraction: %s", fraction);
+    this.outOfOrderFraction = fraction;
+    this.outOfOrderMaxMillis = maxMillis;
+    return this;
+  }
+
+  /** Holds {@code fraction} of the records back by {@code minMillis} to {@code maxMillis}. */
+  KafkaSender withLate(double fraction, long minMillis, long maxMillis) {
+    checkArgument(fraction >= 0 && fraction <= 1, "Not a fraction: %s", fraction);
+    checkArgument(minMillis <= maxMillis, "Late data delays of %sms to %sms are an empty range",
+        minMillis, maxMillis);
+    this.lateFraction = fraction;
+    this.lateMinMillis = minMillis;
+    this.lateMaxMillis = maxMillis;
+    return this;
+  }
+
+  /** Returns whether any records are drawn to be held back, and so need a {@link Random}. */
+  boolean holdsBack() {
+    return lateFraction > 0 || outOfOrderFraction > 0;
+  }
+
+  /**
+   * Sends {@code record} now, or holds it back if {@code random} draws it to be out of order or
+   * late. {@code random} may be null if nothing {@link #holdsBack}.
+   */
+  void send(ProducerRecord<byte[], byte[]> record, Random random) {
+    long delayMillis = 0;
+    if (holdsBack()) {
+      double draw = random.nextDouble();
+      if (draw < lateFraction) {
+        delayMillis =
+            lateMinMillis + (long) (random.nextDouble() * (lateMaxMillis - lateMinMillis));
+      } else if (draw < lateFraction + outOfOrderFraction) {
+        delayMillis = (long) (random.nextDouble() * outOfOrderMaxMillis);
+      }
+    }
+    if (delayMillis == 0 || closed) {
+      producer.send(record, callback);
+      return;
+    }
+    if (!holdPermits.tryAcquire()) {
+      notHeld.incrementAndGet();
+      producer.send(record, callback);
+      return;
+    }
+    if (sender == null) {
+      startSender();
+    }
+    long wallNanos = (long) (TimeUnit.MILLISECONDS.toNanos(delayMillis) / speedup);
+    held.add(new HeldRecord(record, System.nanoTime() + wallNanos));
+  }
+
+  /** Returns how many records are being held back. */
+  int heldRecords() {
+    return held.size();
+  }
+
+  /** Returns how many records drawn to be held were sent at once, as too many were held. */
+  long notHeldRecords() {
+    return notHeld.get();
+  }
+
+  private synchronized void startSender() {
+    if (sender != null) {
+      return;
+    }
+    sender = new Thread("kafka-held-records") {
+      @Override
+      public void run() {
+        try {
+          while (!closed) {
+            HeldRecord next = held.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (next != null) {
+              holdPermits.release();
+              producer.send(next.record, callback);
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    sender.setDaemon(true);
+    sender.start();
+  }
+
+  /**
+   * Stops the sending thread and sends every record still held at once, early. Call this before
+   * flushing and closing the producer, or the held records are lost.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Thread thread = sender;
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    // Polling only returns records whose delay is up, so take the rest all at once.
+    HeldRecord[] remaining = held.toArray(new HeldRecord[0]);
+    held.clear();
+    for (HeldRecord record : remaining) {
+      producer.send(record.record, callback);
+    }
+    if (remaining.length > 0) {
+      System.out.println("Sent " + remaining.length + " held back kafka records early.");
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.pubsub.Pubsub;
+import com.google.api.services.pubsub.model.PublishRequest;
+import com.google.api.services.pubsub.model.PubsubMessage;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Publishes the Injector's events to a Pub/Sub topic, splitting each batch into requests within
+ * the API's limits and keeping several requests in flight at once.
+ *
+ * <p>The requests share a budget of outstanding bytes. Once it is spent, {@link #publish} blocks
+ * until earlier requests complete, which holds back generation until Pub/Sub catches up rather
+ * than queueing events without bound.
+ */
+class PubsubPublisher implements Closeable {
+
+  // The API takes at most 1000 messages and 10MB per publish request. Sizes are counted as sent,
+  // base64 encoded in JSON, and kept under the limit with some room to spare.
+  private static final int MAX_MESSAGES_PER_REQUEST = 1000;
+  private static final int MAX_REQUEST_BYTES = 9 * 1000 * 1000;
+  // Roughly the JSON around each message's data, including its timestamp attribute.
+  private static final int MESSAGE_OVERHEAD_BYTES = 64;
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+  private final Pubsub pubsub;
+  private final String topic;
+  private final String timestampAttribute;
+  private final int maxOutstandingBytes;
+  private final int maxRequestBytes;
+  private final ExecutorService requests;
+  private final Semaphore outstandingBytes;
+
+  /**
+   * Creates a publisher to {@code topic} that sends requests on {@code numThreads} threads and
+   * has at most {@code maxOutstandingBytes} in flight.
+   */
+  PubsubPublisher(Pubsub pubsub, String topic, String timestampAttribute, int numThreads,
+      int maxOutstandingBytes) {
+    this.pubsub = pubsub;
+    this.topic = topic;
+    this.timestampAttribute = timestampAttribute;
+    this.maxOutstandingBytes = maxOutstandingBytes;
+    // A request must fit in the budget on its own, or it could never be sent.
+    this.maxRequestBytes = Math.min(MAX_REQUEST_BYTES, maxOutstandingBytes);
+    this.requests = Executors.newFixedThreadPool(numThreads);
+    // Fair, so that a large request is not passed over forever by smaller ones.
+    this.outstandingBytes = new Semaphore(maxOutstandingBytes, true);
+  }
+
+  /**
+   * Publishes the events of {@code batch}, waiting while too many bytes are in flight. The
+   * messages themselves are built on the request threads.
+   */
+  void publish(EventBatch batch) throws InterruptedException {
+    int from = 0;
+    int requestBytes = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      int messageBytes = (batch.lineLength(i) + 2) / 3 * 4 + MESSAGE_OVERHEAD_BYTES;
+      if (i - from == MAX_MESSAGES_PER_REQUEST
+          || (i > from && requestBytes + messageBytes > maxRequestBytes)) {
+        send(batch, from, i, requestBytes);
+        from = i;
+        requestBytes = 0;
+      }
+      requestBytes += messageBytes;
+    }
+    if (from < batch.size()) {
+      send(batch, from, batch.size(), requestBytes);
+    }
+  }
+
+  /** Sends events {@code from} to {@code to} of {@code batch} in one request. */
+  private void send(final EventBatch batch, final int from, final int to, final int requestBytes)
+      throws InterruptedException {
+    // A single message can make a request larger than the whole budget, which could then never
+    // be acquired; such a request takes the whole budget instead.
+    final int permits = Math.min(requestBytes, maxOutstandingBytes);
+    outstandingBytes.acquire(permits);
+    try {
+      requests.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            pubsub.projects().topics().publish(topic, request(batch, from, to)).execute();
+          } catch (IOException e) {
+            System.err.println("Failed to publish " + (to - from) + " messages to pubsub: " + e);
+          } finally {
+            outstandingBytes.release(permits);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Closed, as the injector is stopping; the events are dropped.
+      outstandingBytes.release(permits);
+    }
+  }
+
+  private PublishRequest request(EventBatch batch, int from, int to) {
+    List<PubsubMessage> pubsubMessages = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      PubsubMessage pubsubMessage = new PubsubMessage().encodeData(batch.lineBytes(i));
+      pubsubMessage.setAttributes(
+          ImmutableMap.of(timestampAttribute, Long.toString(batch.eventTime(i))));
+      if (batch.delayInMillis() != 0) {
+        System.out.println(pubsubMessage.getAttributes());
+        System.out.println("late data for: " + batch.line(i));
+      }
+      pubsubMessages.add(pubsubMessage);
+    }
+    PublishRequest publishRequest = new PublishRequest();
+    publishRequest.setMessages(pubsubMessages);
+    return publishRequest;
+  }
+
+  /** Returns about how many bytes of requests are in flight or waiting for a thread. */
+  int outstandingBytes() {
+    return maxOutstandingBytes - outstandingBytes.availablePermits();
+  }
+
+  /** Waits a while for the requests in flight, then stops publishing. */
+  @Override
+  public void close() throws IOException {
+    requests.shutdown();
+    try {
+      requests.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The event rate the Injector should hold over time: a target rate, optionally reached by a
+ * linear ramp from the start, and optionally interrupted by periodic bursts at a higher rate.
+ */
+class QpsProfile {
+
+  // RateLimiter rates must be positive, so a ramp starts here rather than at zero.
+  private static final double MIN_QPS = 1.0;
+
+  private final double targetQps;
+  private final long rampMillis;
+  private final double burstQps;
+  private final long burstPeriodMillis;
+  private final long burstMillis;
+
+  /**
+   * Creates a profile that ramps up to {@code targetQps} over {@code rampMillis}, then holds it
+   * except for the first {@code burstMillis} of every {@code burstPeriodMillis}, which run at
+   * {@code burstQps}. A zero ramp or burst period disables the ramp or the bursts.
+   */
+  QpsProfile(double targetQps, long rampMillis, double burstQps, long burstPeriodMillis,
+      long burstMillis) {
+    checkArgument(targetQps > 0, "The target QPS must be positive, but was %s", targetQps);
+    checkArgument(burstPeriodMillis == 0 || burstMillis < burstPeriodMillis,
+        "A burst of %sms does not fit in a burst period of %sms", burstMillis, burstPeriodMillis);
+    this.targetQps = targetQps;
+    this.rampMillis = rampMillis;
+    this.burstQps = burstQps;
+    this.burstPeriodMillis = burstPeriodMillis;
+    this.burstMillis = burstMillis;
+  }
+
+  /** Returns the rate to hold {@code elapsedMillis} after the start. */
+  double qpsAt(long elapsedMillis) {
+    if (elapsedMillis < rampMillis) {
+      return Math.max(MIN_QPS, targetQps * elapsedMillis / rampMillis);
+    }
+    if (burstQps > 0 && burstPeriodMillis > 0
+        && (elapsedMillis - rampMillis) % burstPeriodMillis < burstMillis) {
+      return burstQps;
+    }
+    return targetQps;
+  }
+
+  @Override
+  public String toString() {
+    String profile = targetQps + " qps";
+    if (rampMillis > 0) {
+      profile += " after a " + rampMillis / 1000 + "s ramp";
+    }
+    if (burstQps > 0 && burstPeriodMillis > 0) {
+      profile += ", bursting to " + burstQps + " qps for " + burstMillis / 1000 + "s every "
+          + burstPeriodMillis / 1000 + "s";
+    }
+    return profile;
+  }
+}
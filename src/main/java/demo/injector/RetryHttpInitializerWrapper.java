@@ -15,8 +15,6 @@
  */
 package demo.injector;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpBackOffIOExceptionHandler;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
@@ -51,7 +49,8 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
      * Intercepts the request for filling in the "Authorization"
      * header field, as well as recovering from certain unsuccessful
      * error codes wherein the Credential must refresh its token for a
-     * retry.
+     * retry. Null for unauthenticated requests, e.g. to a local
+     * emulator.
      */
     private final Credential wrappedCredential;
 
@@ -64,7 +63,7 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
      * A constructor.
      *
      * @param wrappedCredential Credential which will be wrapped and
-     * used for providing auth header.
+     * used for providing auth header, or null to send no auth header.
      */
     public RetryHttpInitializerWrapper(final Credential wrappedCredential) {
         this(wrappedCredential, Sleeper.DEFAULT);
@@ -79,7 +78,7 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
      */
     RetryHttpInitializerWrapper(
             final Credential wrappedCredential, final Sleeper sleeper) {
-        this.wrappedCredential = checkNotNull(wrappedCredential);
+        this.wrappedCredential = wrappedCredential;
         this.sleeper = sleeper;
     }
 
@@ -93,7 +92,9 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
                 new HttpBackOffUnsuccessfulResponseHandler(
                         new ExponentialBackOff())
                         .setSleeper(sleeper);
-        request.setInterceptor(wrappedCredential);
+        if (wrappedCredential != null) {
+            request.setInterceptor(wrappedCredential);
+        }
         request.setUnsuccessfulResponseHandler(
                 new HttpUnsuccessfulResponseHandler() {
                     @Override
@@ -101,8 +102,9 @@ public class RetryHttpInitializerWrapper implements HttpRequestInitializer {
                             final HttpRequest request,
                             final HttpResponse response,
                             final boolean supportsRetry) throws IOException {
-                        if (wrappedCredential.handleResponse(
-                                request, response, supportsRetry)) {
+                        if (wrappedCredential != null
+                                && wrappedCredential.handleResponse(
+                                        request, response, supportsRetry)) {
                             // If credential decides it can handle it,
                             // the return code or message indicated
                             // something specific to authentication,
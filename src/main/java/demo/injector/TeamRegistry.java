@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 The Project Authors, see separate AUTHORS file
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package demo.injector;
+
+import demo.injector.EventGenerator.TeamInfo;
+
+/**
+ * The live teams of an {@link EventGenerator}: a fixed number of slots, each holding one team
+ * until it expires and is replaced. Each generator owns its registry and only uses it on its own
+ * thread, so the slots are a plain array.
+ */
+class TeamRegistry {
+
+  private final TeamInfo[] slots;
+
+  TeamRegistry(int size) {
+    slots = new TeamInfo[size];
+  }
+
+  int size() {
+    return slots.length;
+  }
+
+  /** Returns the team in {@code slot}, or null before the slot is first filled. */
+  TeamInfo get(int slot) {
+    return slots[slot];
+  }
+
+  /** Fills {@code slot}, replacing whatever it held. */
+  void set(int slot, TeamInfo team) {
+    slots[slot] = team;
+  }
+}